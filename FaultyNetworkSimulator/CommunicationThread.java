@@ -4,12 +4,18 @@ package FaultyNetworkSimulator;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.*;
  
 public class CommunicationThread extends Thread {
+	private static final int RELAY_IDLE_TIMEOUT = 60000;
+
 	private int serverPort;
-	private int clientPort;
 	private int chanceToDrop=75;
+	private Random rand=new Random();
+	// Client (address:port) -> socket relaying its transfers, so that several
+	// clients, or the stripes of one, can go through at once
+	private Map<SocketAddress, DatagramSocket> relays = new ConcurrentHashMap<SocketAddress, DatagramSocket>();
     protected DatagramSocket socket = null;
     protected BufferedReader in = null;
  
@@ -21,39 +27,67 @@ public class CommunicationThread extends Thread {
     }
  
     public void run() {
-    	Random rand=new Random();
-    	int randomNum;
-    	int dstPort;
-    	boolean firstPacket=true;;
     	while(true){
     		try {
-    			ByteBuffer buff = ByteBuffer.allocate(1024);
+    			ByteBuffer buff = ByteBuffer.allocate(65535);
                 // receive request
                 DatagramPacket packet = new DatagramPacket(buff.array(),buff.array().length);
                 socket.receive(packet);   
                
-                InetAddress address = packet.getAddress();
-                if(firstPacket){
-                	clientPort=packet.getPort();
-                	firstPacket=false;
-                }
-                if(packet.getPort()==clientPort){
-                	dstPort=serverPort;
-                }else{
-                	dstPort=clientPort;
-                }
-                randomNum=rand.nextInt(100);
-                if(randomNum>=(chanceToDrop))
-                {
-                	//System.out.println("got packet : " + packet.getLength() +" from " + packet.getPort() + " sending to " + dstPort);
-                	packet = new DatagramPacket(buff.array(), packet.getLength(), address, dstPort);
-                	socket.send(packet);     
-                }
+                // Requests go to the server listening port, from the relay of
+                // the client so that the server replies there
+                forward(relayFor(packet.getAddress(), packet.getPort()), packet, packet.getAddress(), serverPort);
     		}catch(Exception e){
     			System.err.println("ERROR : " + e);
     			
     		}
     	}
     }
+
+    private void forward(DatagramSocket out, DatagramPacket packet, InetAddress address, int dstPort) throws IOException {
+        int randomNum=rand.nextInt(100);
+        if(randomNum>=(chanceToDrop))
+        {
+        	//System.out.println("got packet : " + packet.getLength() +" from " + packet.getPort() + " sending to " + dstPort);
+        	out.send(new DatagramPacket(packet.getData(), packet.getLength(), address, dstPort));
+        }
+    }
+
+    private DatagramSocket relayFor(InetAddress clientAddress, int clientPort) throws SocketException {
+    	SocketAddress client = new InetSocketAddress(clientAddress, clientPort);
+    	DatagramSocket relay = relays.get(client);
+    	if(relay!=null){
+    		return relay;
+    	}
+    	DatagramSocket newRelay = new DatagramSocket();
+    	newRelay.setSoTimeout(RELAY_IDLE_TIMEOUT);
+    	relays.put(client, newRelay);
+    	new Thread(() -> {
+    		byte[] buf = new byte[65535];
+    		InetAddress serverAddress = clientAddress;
+    		int transferPort = serverPort;
+    		try {
+    			while(true){
+    				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    				newRelay.receive(packet);
+    				if(packet.getPort()==clientPort && packet.getAddress().equals(clientAddress)){
+    					// Client answers go to the server transfer
+    					forward(newRelay, packet, serverAddress, transferPort);
+    				}else{
+    					// Server replies from a port per transfer, relay it to
+    					// the client from our port so its answers come back
+    					serverAddress=packet.getAddress();
+    					transferPort=packet.getPort();
+    					forward(newRelay, packet, clientAddress, clientPort);
+    				}
+    			}
+    		}catch(IOException e){
+    			// Idle client, drop the relay
+    			relays.remove(client);
+    			newRelay.close();
+    		}
+    	}).start();
+    	return newRelay;
+    }
  
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+package app;
+
+/*
+ * Additive increase, multiplicative decrease. Slow start doubles the window
+ * every round trip up to the threshold, then it grows by one block per round
+ * trip. A loss halves it, a timeout restarts from one block.
+ */
+public class AimdCongestionControl implements CongestionControl {
+	static final int INITIAL_WINDOW = 2;
+
+	private final int maxWindow;
+	private double window = INITIAL_WINDOW;
+	private double threshold;
+
+	public AimdCongestionControl(int maxWindow) {
+		this.maxWindow = maxWindow;
+		threshold = maxWindow;
+		window = Math.min(window, maxWindow);
+	}
+
+	@Override
+	public int window() {
+		return Math.max(1, (int) window);
+	}
+
+	@Override
+	public void onAck(int blocks) {
+		for (int i = 0; i < blocks; i++) {
+			if (window < threshold)
+				window += 1; // Slow start
+			else
+				window += 1 / window; // Congestion avoidance
+		}
+		window = Math.min(window, maxWindow);
+	}
+
+	@Override
+	public void onLoss() {
+		threshold = Math.max(window / 2, 1);
+		window = threshold;
+	}
+
+	@Override
+	public void onTimeout() {
+		threshold = Math.max(window / 2, 1);
+		window = 1;
+	}
+
+	@Override
+	public String toString() {
+		return "aimd";
+	}
+}
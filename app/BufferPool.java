@@ -0,0 +1,53 @@
+package app;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Packet buffers shared by the transfers of the process. Buffers come in
+ * power of two sizes so a session only holds as much as its block size needs,
+ * and a finished session hands its buffer over to the next one instead of
+ * leaving it to the garbage collector.
+ */
+public class BufferPool {
+	private static final int MIN_SIZE_CLASS = 9; // 512 bytes
+	private static final int MAX_SIZE_CLASS = 16; // 64 KB, any datagram fits
+	private static final int MAX_POOLED = 64; // Buffers kept per size
+
+	private static final BufferPool defaultPool = new BufferPool();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ArrayBlockingQueue<byte[]>[] buffers = new ArrayBlockingQueue[MAX_SIZE_CLASS + 1];
+
+	public BufferPool() {
+		for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++)
+			buffers[i] = new ArrayBlockingQueue<>(MAX_POOLED);
+	}
+
+	public static BufferPool getDefault() {
+		return defaultPool;
+	}
+
+	/*
+	 * Buffer of at least <size> bytes, pooled if one is available.
+	 */
+	public byte[] acquire(int size) {
+		int sizeClass = sizeClass(size);
+		byte[] buf = buffers[sizeClass].poll();
+		return buf != null ? buf : new byte[1 << sizeClass];
+	}
+
+	/*
+	 * Give back a buffer from acquire. Dropped if the pool is full.
+	 */
+	public void release(byte[] buf) {
+		if (buf != null)
+			buffers[sizeClass(buf.length)].offer(buf);
+	}
+
+	private static int sizeClass(int size) {
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		if (sizeClass > MAX_SIZE_CLASS)
+			throw new IllegalArgumentException("Buffer too large: " + size);
+		return Math.max(sizeClass, MIN_SIZE_CLASS);
+	}
+}
@@ -0,0 +1,81 @@
+package app;
+
+/*
+ * Part of a file moved by one transfer of a striped get or put, or by a
+ * resumed one (range option). Asked as <offset>-<length> in bytes, <offset>-
+ * up to the end of the file, or <i>/<n> for the i-th of n equal parts when
+ * only the sender knows the size of the file. A put resumes with -, the
+ * receiver picks the offset, the end of its partial file. The answer holds
+ * the offset, and the receiver writes there. Blocks are numbered from 1 in
+ * each range.
+ */
+public class ByteRange {
+	public static final String RESUME = "-";
+
+	private final long offset;
+	private final long length; // -1 up to the end of the file
+
+	public ByteRange(long offset, long length) {
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/*
+	 * Range of a file of <fileSize> bytes, -1 if unknown. Parts are aligned
+	 * on <blockSize>. Returns null if <value> is not a range or not inside
+	 * the file.
+	 */
+	public static ByteRange parse(String value, long fileSize, int blockSize) {
+		try {
+			int slash = value.indexOf('/');
+			if (slash != -1) {
+				if (fileSize < 0)
+					return null;
+				return stripe(Integer.parseInt(value.substring(0, slash)),
+						Integer.parseInt(value.substring(slash + 1)), fileSize, blockSize);
+			}
+			int dash = value.indexOf('-');
+			long offset = Long.parseLong(value.substring(0, dash));
+			long length = dash == value.length() - 1 ? -1 : Long.parseLong(value.substring(dash + 1));
+			if (offset < 0 || length < -1 || fileSize >= 0 && offset + Math.max(length, 0) > fileSize)
+				return null;
+			return new ByteRange(offset, length == -1 && fileSize >= 0 ? fileSize - offset : length);
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The <index>-th of <count> parts of a file, a whole number of blocks
+	 * each except the last one. Null if <index> is not a part.
+	 */
+	public static ByteRange stripe(int index, int count, long fileSize, int blockSize) {
+		if (index < 0 || index >= count)
+			return null;
+		long blocks = (fileSize + blockSize - 1) / blockSize;
+		long perStripe = (blocks + count - 1) / count * blockSize;
+		long from = Math.min(index * perStripe, fileSize);
+		long to = index == count - 1 ? fileSize : Math.min(from + perStripe, fileSize);
+		return new ByteRange(from, to - from);
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/*
+	 * Length in a file of <fileSize> bytes.
+	 */
+	public long length(long fileSize) {
+		return length == -1 ? fileSize - offset : length;
+	}
+
+	@Override
+	public String toString() {
+		return offset + "-" + (length == -1 ? "" : length);
+	}
+}
@@ -8,6 +8,14 @@ public interface CommInterface {
 	public void sendCommand(String command);
 	public void error(String e);
 	public String getCommand();
+	public CommInterface newSession();
+	public boolean hasBlockingSessions();
 	public void closeConnection();
+
+	/*
+	 * Told how transfers go from now on, sessions included. The console by
+	 * default.
+	 */
+	public void setListener(TransferListener listener);
 }
 
@@ -0,0 +1,39 @@
+package app;
+
+/*
+ * Sender side congestion control of a windowed transfer. Decides how many
+ * blocks may be in flight from the acks and losses seen, so that concurrent
+ * transfers share the path instead of flooding it. One instance per
+ * transfer.
+ */
+public interface CongestionControl {
+
+	public interface Factory {
+		/*
+		 * Controller for a transfer allowed up to <maxWindow> blocks in
+		 * flight.
+		 */
+		public CongestionControl create(int maxWindow);
+	}
+
+	/*
+	 * Blocks that may be in flight, at least 1.
+	 */
+	public int window();
+
+	/*
+	 * <blocks> newly acked.
+	 */
+	public void onAck(int blocks);
+
+	/*
+	 * Loss seen from the acks (duplicate or short ack), the rest of the
+	 * window still got through.
+	 */
+	public void onLoss();
+
+	/*
+	 * No ack before the timeout.
+	 */
+	public void onTimeout();
+}
@@ -0,0 +1,143 @@
+package app;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Default listener, prints how transfers go on the console. Transfers only
+ * leave their progress here, a thread of its own prints it every INTERVAL
+ * and their completion as it comes, so that a slow console never holds the
+ * data path: progress between two prints is not printed.
+ */
+public class ConsoleReporter implements TransferListener {
+	static final long INTERVAL = 1000; // ms between two prints of progress
+	private static final int PRINT_COMPLETION = 2; // 0: no print;
+													// 1: print percentages;
+													// 2: print ratio.
+													// 3: print number of resent
+													// packets
+
+	private static ConsoleReporter console;
+
+	private final Map<Long, Progress> transfers = new ConcurrentHashMap<>(); // Running
+	private final ScheduledExecutorService printer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "tftp-progress");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static class Progress {
+		private volatile long bytes = 0, total = -1;
+		private volatile int retries = 0; // Written by the transfer only
+		private long printed = 0; // Bytes, printer only
+	}
+
+	public ConsoleReporter() {
+		printer.scheduleAtFixedRate(this::print, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Reporter of the engines not given a listener, shared.
+	 */
+	public static synchronized ConsoleReporter getDefault() {
+		if (console == null)
+			console = new ConsoleReporter();
+		return console;
+	}
+
+	@Override
+	public void started(long id, String name) {
+		transfers.put(id, new Progress());
+	}
+
+	@Override
+	public void progress(long id, long bytes, long total) {
+		Progress progress = transfers.get(id);
+		if (progress != null) {
+			progress.total = total;
+			progress.bytes = bytes;
+		}
+	}
+
+	@Override
+	public void retry(long id, int block) {
+		Progress progress = transfers.get(id);
+		if (progress != null)
+			progress.retries++;
+	}
+
+	/*
+	 * Last progress, then the number of resent packets, as the sender did.
+	 */
+	@Override
+	public void completed(long id, long bytes, int retries) {
+		Progress progress = transfers.remove(id);
+		if (progress == null)
+			return;
+		progress.total = progress.bytes = bytes;
+		printer.execute(() -> {
+			if (PRINT_COMPLETION != 3)
+				print(progress);
+			System.out.println("# of resent packet: " + retries);
+		});
+	}
+
+	/*
+	 * Printed by the engine already.
+	 */
+	@Override
+	public void error(long id, String message) {
+		transfers.remove(id);
+	}
+
+	/*
+	 * Wait until what was reported so far is printed.
+	 */
+	public void flush() {
+		try {
+			printer.submit(() -> {
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Nothing to print
+		}
+	}
+
+	private void print() {
+		for (Progress progress : transfers.values())
+			print(progress);
+	}
+
+	/*
+	 * Printer thread. Progress of a transfer, unless printed already.
+	 */
+	private void print(Progress progress) {
+		long current = progress.bytes, finish = progress.total;
+		if (current == progress.printed)
+			return;
+		progress.printed = current;
+		switch (PRINT_COMPLETION) {
+		case 0:
+			break;
+		case 1:
+			if (finish > 0)
+				System.out.printf("%d%% done\n", 100 * current / finish);
+			break;
+		case 2:
+			float c = (float) (current / 1000.0);
+			float f = (float) (finish / 1000.0);
+			if (finish >= 0)
+				System.out.printf("%.3f//%.3f KB transferred\n", c, f);
+			else
+				System.out.printf("%.3f KB transferred\n", c);
+			break;
+		case 3:
+			System.out.println("# of resent packet: " + progress.retries);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package app;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Single thread driving the non-blocking transfers of NioTFTP. Waits on one
+ * selector for readable channels and on a queue of timers for retransmit
+ * deadlines. Everything touching transfer state runs on this thread; other
+ * threads hand work over with execute().
+ */
+public class EventLoop implements Runnable {
+
+	public interface Handler {
+		public void onReadable(DatagramChannel channel);
+	}
+
+	public class Timer implements Comparable<Timer> {
+		private final long deadline;
+		private final Runnable task;
+		private boolean cancelled = false;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+
+	private static EventLoop defaultLoop;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+	private Thread thread;
+
+	public EventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/*
+	 * Loop shared by all the transfers of the process, started on first use.
+	 */
+	public static synchronized EventLoop getDefault() throws IOException {
+		if (defaultLoop == null) {
+			defaultLoop = new EventLoop();
+			defaultLoop.thread = new Thread(defaultLoop, "tftp-event-loop");
+			defaultLoop.thread.setDaemon(true);
+			defaultLoop.thread.start();
+		}
+		return defaultLoop;
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/*
+	 * Must be called from the loop thread.
+	 */
+	public void register(DatagramChannel channel, Handler handler) throws ClosedChannelException {
+		channel.register(selector, SelectionKey.OP_READ, handler);
+	}
+
+	/*
+	 * Must be called from the loop thread.
+	 */
+	public Timer schedule(long delay, Runnable task) {
+		Timer timer = new Timer(System.currentTimeMillis() + delay, task);
+		timers.add(timer);
+		return timer;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				// Sleep until next timer expires or a channel is readable
+				long timeout = 0;
+				Timer next = timers.peek();
+				if (next != null)
+					timeout = Math.max(1, next.deadline - System.currentTimeMillis());
+				selector.select(timeout);
+
+				// Dispatch readable channels
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key.isValid() && key.isReadable())
+						((Handler) key.attachment()).onReadable((DatagramChannel) key.channel());
+				}
+				selector.selectedKeys().clear();
+
+				// Run work handed over by other threads
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				// Fire expired timers
+				long now = System.currentTimeMillis();
+				while (!timers.isEmpty() && timers.peek().deadline <= now) {
+					Timer timer = timers.poll();
+					if (!timer.cancelled)
+						timer.task.run();
+				}
+			} catch (Exception e) {
+				System.out.println("Error in event loop: " + e);
+			}
+		}
+	}
+}
@@ -1,31 +1,57 @@
 package app;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.function.Supplier;
 
 public class FTClient {
 	private int serverPort = 6050;
 	private BufferedReader userInput;
 	private CommInterface ftp = new TFTP();
+	private StripedTransfer striped; // Null unless transfers are striped
+
+	public FTClient() {
+	}
+
+	public FTClient(CommInterface ftp) {
+		this.ftp = ftp;
+	}
+
+	/*
+	 * Client splitting each get and put into <stripes> transfers made by
+	 * <transfers>, run in parallel.
+	 */
+	public FTClient(Supplier<CommInterface> transfers, int stripes) {
+		this.ftp = transfers.get();
+		if (stripes > 1)
+			striped = new StripedTransfer(transfers, "localhost", serverPort, stripes);
+	}
 
 	public void run() {
 		// Initialize the command prompt
 		System.out.println("COMMANDS:");
 		System.out.println("\tput,<fileName>");
 		System.out.println("\tget,<fileName>");
+		System.out.println("\tmget,<fileName>");
+		System.out.println("\treput,<fileName>");
+		System.out.println("\treget,<fileName>");
 		System.out.println("\tquit");
 		System.out.println("");
 		System.out.println("<fileName> should not contain any white space characters");
 		System.out.println("");
 		userInput = new BufferedReader(new InputStreamReader(System.in));
 
-		// Initialize the client TFTP
+		// Initialize the client TFTP, transfers seen by JMX
 		ftp.initializeClient("localhost", serverPort);
+		TransferMetrics.register();
 
 		// Main loop
 		String command = "";
 		while (true) {
+			// Last transfer reported before the prompt
+			ConsoleReporter.getDefault().flush();
 			System.out.print("ftp>");
 			command = getCommand().replaceAll("\\s", "");;
 			
@@ -36,6 +62,20 @@ public class FTClient {
 				System.out.println("Invalid command: too few arguments");
 			} else if (tokens.length == 1 && !tokens[0].equals("quit")) {
 				System.out.println("Invalid command: not recognized");
+			} else if (striped != null && tokens[0].equals("get")) {
+				striped.get(tokens[1], "./client/receive/" + tokens[1]);
+			} else if (striped != null && tokens[0].equals("put")) {
+				striped.put(tokens[1], "./client/send/" + tokens[1]);
+			} else if (tokens[0].equals("reput")) {
+				// Server resumes from the end of its partial file
+				ftp.sendCommand("put," + tokens[1] + "," + ByteRange.RESUME);
+				sendFile(tokens[1]);
+			} else if (tokens[0].equals("reget")) {
+				// Resume from the end of the partial file, as journaled
+				String filePath = "./client/receive/" + tokens[1];
+				long received = TransferJournal.recover(filePath, new File(filePath).length());
+				ftp.sendCommand("get," + tokens[1] + "," + received + "-");
+				receiveFile(tokens[1]);
 			}else {
 				ftp.sendCommand(command);
 				switch(tokens[0]) {
@@ -43,6 +83,7 @@ public class FTClient {
 					 sendFile(tokens[1]);
 					 break;
 				case "get":
+				case "mget":
 					receiveFile(tokens[1]);
 					break;
 				default:
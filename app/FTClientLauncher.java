@@ -3,8 +3,14 @@ package app;
 public class FTClientLauncher {
 	private static FTClient client;
 
+	// Usage: FTClientLauncher [tftp|nio] [protobuf|rfc1350] [aimd|fixed] [stripes]
 	public static void main(String[] args) {
-		client = new FTClient();
+		boolean nio = args.length > 0 && args[0].equals("nio");
+		PacketCodec codec = args.length > 1 && args[1].equals("rfc1350") ? new Rfc1350Codec() : new ProtobufCodec();
+		CongestionControl.Factory congestion = args.length > 2 && args[2].equals("fixed") ? FixedWindow::new
+				: AimdCongestionControl::new;
+		int stripes = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		client = new FTClient(() -> nio ? new NioTFTP(codec, congestion) : new TFTP(codec, congestion), stripes);
 		client.run();
 	}
 }
\ No newline at end of file
@@ -1,52 +1,116 @@
 package app;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 public class FTServer {
 	private int serverPort = 6070;
+	private boolean virtualThreads = false; // One virtual thread per session
+											// instead of a platform thread pool
+	private int maxSessions = 32; // Transfers served in parallel
+	private int maxQueuedSessions = 64; // Transfers waiting for a thread
 	private CommInterface ftp = new TFTP();
+	private Executor sessions;
+	private Semaphore liveSessions;
+
+	public FTServer() {
+	}
+
+	public FTServer(int serverPort, boolean virtualThreads, int maxSessions) {
+		this(serverPort, new TFTP(), virtualThreads, maxSessions);
+	}
+
+	public FTServer(int serverPort, CommInterface ftp, boolean virtualThreads, int maxSessions) {
+		this.serverPort = serverPort;
+		this.ftp = ftp;
+		this.virtualThreads = virtualThreads;
+		this.maxSessions = maxSessions;
+	}
 
 	public void run() {
 		System.out.println("Server running...");
 
-		// Initialize the server
+		// Initialize the server. Sessions of an event-loop engine need no
+		// thread. On virtual threads, sessions cost little while waiting so
+		// only their number is capped.
 		ftp.initializeServer(serverPort);
+		TransferMetrics.register();
+		if (!ftp.hasBlockingSessions()) {
+			sessions = Runnable::run;
+		} else if (virtualThreads) {
+			sessions = Executors.newVirtualThreadPerTaskExecutor();
+			liveSessions = new Semaphore(maxSessions);
+		} else {
+			sessions = new ThreadPoolExecutor(maxSessions, maxSessions, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(maxQueuedSessions));
+		}
 
 		// Main server loop
 		while (true) {
 			System.out.println("Server waiting for request...");
 
 			// Wait for command
-			String command = "";
-			command = ftp.getCommand();
+			String command = ftp.getCommand();
 			if (command == null) {
 				continue;
 			}
 			System.out.println("Server received command:\n\t" + command);
 
+			// Each transfer is served by its own session
+			CommInterface session = ftp.newSession();
+			if (session == null) {
+				continue;
+			}
+			if (liveSessions != null && !liveSessions.tryAcquire()) {
+				session.error("Server busy");
+				session.closeConnection();
+				continue;
+			}
+			try {
+				sessions.execute(() -> serve(session, command));
+			} catch (RejectedExecutionException e) {
+				session.error("Server busy");
+				session.closeConnection();
+			}
+		}
+	}
+
+	private void serve(CommInterface session, String command) {
+		try {
 			// Parse the command
 			String tokens[] = parseCommand(command);
 
 			// Interpret the command
 			switch (tokens[0].toLowerCase()) {
 			case "put":
-				receiveFile(tokens[1]);
+				receiveFile(session, tokens[1]);
 				break;
 			case "get":
-				sendFile(tokens[1]);
+				sendFile(session, tokens[1]);
 				break;
 			}
+		} finally {
+			session.closeConnection();
+			if (liveSessions != null)
+				liveSessions.release();
 		}
 	}
 
-	private void sendFile(String filePath) {
+	private void sendFile(CommInterface session, String filePath) {
 		filePath = new String("./server/send/" + filePath);
 		System.out.println("Server sending file:\n\t" + filePath);
-		ftp.sendFile(filePath);
+		session.sendFile(filePath);
 	}
 
-	private void receiveFile(String filePath) {
+	private void receiveFile(CommInterface session, String filePath) {
 		filePath = new String("./server/receive/" + filePath);
 		System.out.println("Server receiving file:\n\t" + filePath);
-		ftp.receiveFile(filePath);
+		session.receiveFile(filePath);
 	}
 
 	private String[] parseCommand(String command) {
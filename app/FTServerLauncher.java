@@ -1,11 +1,30 @@
 package app;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 public class FTServerLauncher {
 	private static FTServer server;
 
-	public static void main(String[] args) {
-		server = new FTServer();
+	// Usage: FTServerLauncher [pool|virtual|nio] [maxSessions] [protobuf|rfc1350] [aimd|fixed] [cacheMB] [group:port|off]
+	public static void main(String[] args) throws UnknownHostException {
+		String mode = args.length > 0 ? args[0] : "pool";
+		boolean virtualThreads = mode.equals("virtual");
+		int maxSessions = args.length > 1 ? Integer.parseInt(args[1]) : virtualThreads ? 10000 : 32;
+		PacketCodec codec = args.length > 2 && args[2].equals("rfc1350") ? new Rfc1350Codec() : new ProtobufCodec();
+		CongestionControl.Factory congestion = args.length > 3 && args[3].equals("fixed") ? FixedWindow::new
+				: AimdCongestionControl::new;
+		long cacheSize = (args.length > 4 ? Long.parseLong(args[4]) : 64) << 20; // 0 disables the cache
+		FileCache fileCache = cacheSize > 0 ? new FileCache(cacheSize) : null;
+		if (fileCache != null)
+			MBeans.register("type=FileCache", fileCache);
+		String group = args.length > 5 ? args[5] : "239.255.0.1:6090"; // First multicast group
+		MulticastGroups multicast = group.equals("off") ? null
+				: new MulticastGroups(InetAddress.getByName(group.substring(0, group.lastIndexOf(':'))),
+						Integer.parseInt(group.substring(group.lastIndexOf(':') + 1)));
+		CommInterface ftp = mode.equals("nio") ? new NioTFTP(codec, congestion, fileCache)
+				: new TFTP(codec, congestion, fileCache, multicast);
+		server = new FTServer(6070, ftp, virtualThreads, maxSessions);
 		server.run();
 	}
 }
@@ -0,0 +1,144 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Server side. Content of the files sent most recently, kept off heap so
+ * that the same file asked again and again is not read from disk each time.
+ * Entries are known by path, last modified time and size, a file that
+ * changed is loaded again. Least recently used files are evicted when the
+ * cache grows past its capacity.
+ *
+ * A miss does not make the transfer wait: the file is loaded in the
+ * background and the transfer that missed is served from the mapped file.
+ */
+public class FileCache implements FileCacheMXBean {
+	private static final int MAX_SHARE = 4; // Files larger than capacity /
+											// MAX_SHARE are not cached
+
+	private final long capacity; // Bytes
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Set<Path> loading = new HashSet<>();
+	private long size = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+
+	private static class Entry {
+		final long modified, length;
+		final ByteBuffer content; // Read only, direct
+
+		Entry(long modified, long length, ByteBuffer content) {
+			this.modified = modified;
+			this.length = length;
+			this.content = content;
+		}
+	}
+
+	public FileCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/*
+	 * Content of the file at <path>, <length> bytes long. Null if it is not
+	 * cached, then loaded in the background if it fits. Blocks are taken from
+	 * it with absolute slices, its position is shared.
+	 */
+	public ByteBuffer get(Path path, long length) throws IOException {
+		path = path.toAbsolutePath().normalize();
+		long modified = Files.getLastModifiedTime(path).toMillis();
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.modified == modified && entry.length == length) {
+				hits++;
+				return entry.content;
+			}
+			misses++;
+			if (length > capacity / MAX_SHARE || length > Integer.MAX_VALUE || !loading.add(path))
+				return null;
+		}
+		Path file = path;
+		Thread.ofVirtual().name("tftp-cache-load").start(() -> load(file, modified, length));
+		return null;
+	}
+
+	@Override
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	@Override
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Cache: %d hits, %d misses, %d evictions, %.3f/%.3f MB", hits, misses, evictions,
+				size / 1e6, capacity / 1e6);
+	}
+
+	/*
+	 * Loader thread. However it ends, the file can be loaded again by the
+	 * next request.
+	 */
+	private void load(Path path, long modified, long length) {
+		try {
+			ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+			TransferEvents.DiskRead event = TransferEvents.beginDiskRead();
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+				while (content.hasRemaining() && file.read(content, content.position()) != -1)
+					;
+			} catch (IOException e) {
+				System.out.println("Error while caching file: " + e);
+			}
+			TransferEvents.diskRead(event, path.toString(), 0, content.position());
+			// Changed while being read, the next request loads it again
+			if (content.hasRemaining())
+				return;
+			synchronized (this) {
+				Entry previous = entries.put(path, new Entry(modified, length, content.flip().asReadOnlyBuffer()));
+				size += length - (previous != null ? previous.length : 0);
+
+				// Least recently used first
+				Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+				while (size > capacity && eldest.hasNext()) {
+					Entry entry = eldest.next().getValue();
+					eldest.remove();
+					size -= entry.length;
+					evictions++;
+				}
+			}
+		} catch (OutOfMemoryError e) {
+			// Direct memory of evicted files not collected yet
+			System.out.println("Error while caching file: " + e);
+		} finally {
+			synchronized (this) {
+				loading.remove(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package app;
+
+/*
+ * What JMX shows of the file cache. Sizes are in bytes.
+ */
+public interface FileCacheMXBean {
+	public long getHits();
+
+	public long getMisses();
+
+	public long getEvictions();
+
+	public long getSize();
+
+	public long getCapacity();
+}
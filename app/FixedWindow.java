@@ -0,0 +1,36 @@
+package app;
+
+/*
+ * No congestion control, the whole negotiated window is always in flight.
+ * Also used with peers that only ack at the end of a window (RFC 7440), a
+ * smaller window would never be acked.
+ */
+public class FixedWindow implements CongestionControl {
+	private final int window;
+
+	public FixedWindow(int window) {
+		this.window = window;
+	}
+
+	@Override
+	public int window() {
+		return window;
+	}
+
+	@Override
+	public void onAck(int blocks) {
+	}
+
+	@Override
+	public void onLoss() {
+	}
+
+	@Override
+	public void onTimeout() {
+	}
+
+	@Override
+	public String toString() {
+		return "fixed";
+	}
+}
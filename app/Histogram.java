@@ -0,0 +1,92 @@
+package app;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Distribution of positive values, recorded without locks from any number of
+ * threads. Log-linear buckets as in HdrHistogram: values below SUB_BUCKETS
+ * have their own, above that each power of two is split in SUB_BUCKETS, so
+ * a value is known within 1/SUB_BUCKETS of itself whatever its magnitude.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 36; // Values up to 2^40, larger
+												// ones count as the largest
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get())
+			max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * Value at or below which <percent> of the recorded ones are, the top of
+	 * its bucket. 0 if none were recorded.
+	 */
+	public long getPercentile(double percent) {
+		long n = 0;
+		for (int i = 0; i < counts.length(); i++)
+			n += counts.get(i);
+		long target = Math.max(1, (long) Math.ceil(percent / 100 * n)), seen = 0;
+		for (int i = 0; i < counts.length() && n > 0; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highest(i), max.get());
+		}
+		return 0;
+	}
+
+	/*
+	 * Count of each bucket holding values, by the top of the bucket.
+	 */
+	public SortedMap<Long, Long> getBuckets() {
+		SortedMap<Long, Long> buckets = new TreeMap<>();
+		for (int i = 0; i < counts.length(); i++) {
+			long n = counts.get(i);
+			if (n > 0)
+				buckets.put(highest(i), n);
+		}
+		return buckets;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BITS, MAX_SHIFT);
+		int sub = (int) Math.min(value >> shift, 2 * SUB_BUCKETS - 1) & SUB_BUCKETS - 1;
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+	}
+}
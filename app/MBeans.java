@@ -0,0 +1,35 @@
+package app;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * MBeans of this process, registered with the platform MBean server so that
+ * jconsole or any JMX client can watch the transfers. Failing to register
+ * only loses the metrics, never the transfer.
+ */
+public class MBeans {
+	static final String DOMAIN = "app";
+
+	/*
+	 * Register <mbean> under DOMAIN with the key properties <properties>.
+	 */
+	public static void register(String properties, Object mbean) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					new ObjectName(DOMAIN + ":" + properties));
+		} catch (JMException e) {
+			System.out.println("Error while registering MBean: " + e);
+		}
+	}
+
+	public static void unregister(String properties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(DOMAIN + ":" + properties));
+		} catch (JMException e) {
+			System.out.println("Error while unregistering MBean: " + e);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Sender side. A file, or range of it, too large to be mapped whole, past
+ * 2 GB: blocks are slices of maps of SEGMENT_SIZE of it instead, mapped one
+ * at a time as the sender gets there. Blocks kept for resending hold on to
+ * the map they come from, the others are let go, so what is mapped does not
+ * grow with the file. Each map is read ahead as a whole file would be.
+ */
+public class MappedSegments {
+	static final long SEGMENT_SIZE = 256 << 20; // Mapped at once, whole
+												// blocks only
+
+	private final FileChannel file;
+	private final String filePath;
+	private final long offset, length; // Of the range in the file
+	private final long segmentSize;
+	private long start = -1; // Of the mapped segment in the range
+	private MappedByteBuffer segment;
+	private ReadAhead readAhead;
+
+	public MappedSegments(FileChannel file, String filePath, long offset, long length, int blockSize) {
+		this.file = file;
+		this.filePath = filePath;
+		this.offset = offset;
+		this.length = length;
+		this.segmentSize = SEGMENT_SIZE / blockSize * blockSize;
+	}
+
+	/*
+	 * <size> bytes at <from> in the range, within a block.
+	 */
+	public ByteBuffer slice(long from, int size) throws IOException {
+		long start = from / segmentSize * segmentSize;
+		if (start != this.start) {
+			segment = file.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(segmentSize, length - start));
+			readAhead = new ReadAhead(segment, filePath, offset + start);
+			this.start = start;
+		}
+		int position = (int) (from - start);
+		readAhead.reached(position);
+		return segment.slice(position, size);
+	}
+}
@@ -0,0 +1,135 @@
+package app;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Server side. Multicast groups of the files being pushed to several clients
+ * at once (multicast option, RFC 2090). The first client asking for a file
+ * is the master client: its transfer sends the blocks to the group and its
+ * acks pace them. Clients asking for the same file meanwhile only get the
+ * group in an option ack, listen to it and get what they missed by unicast.
+ * Each file gets its own address and port, the base ones plus the index of
+ * the group, as long as they stay in the range of the base ones. Blocks of a
+ * group are told apart by the port of the master transfer they come from,
+ * and a group left is not given to another file before its clients stop
+ * listening to it.
+ */
+public class MulticastGroups {
+	static final int MAX_GROUPS = 256;
+	static final long REUSE_DELAY = 2 * TFTP.GROUP_TIMEOUT; // ms a group left
+															// stays unused
+
+
+	private final InetAddress base;
+	private final int basePort;
+	private final Map<Path, Group> groups = new HashMap<>();
+	private final BitSet used = new BitSet(MAX_GROUPS);
+	private final long[] left = new long[MAX_GROUPS]; // Time each group was
+														// last left, ms
+
+	public static class Group {
+		private final int index;
+		private final InetAddress address;
+		private final int port;
+		private final Object master; // Transfer of the master client
+		private final int source; // Port the master transfer sends from
+		private final int blockSize;
+
+		private Group(int index, InetAddress address, int port, Object master, int source, int blockSize) {
+			this.index = index;
+			this.address = address;
+			this.port = port;
+			this.master = master;
+			this.source = source;
+			this.blockSize = blockSize;
+		}
+
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public int getSource() {
+			return source;
+		}
+
+		public boolean isMaster(Object transfer) {
+			return master == transfer;
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+	}
+
+	public MulticastGroups(InetAddress base, int basePort) {
+		this.base = base;
+		this.basePort = basePort;
+	}
+
+	/*
+	 * Group sending the file at <path>. Started with <transfer> as its master
+	 * client, sending blocks of <blockSize> from port <source>, if there is
+	 * none. Null if all groups are taken, left too recently or out of range.
+	 */
+	public synchronized Group join(Path path, Object transfer, int source, int blockSize) {
+		path = path.toAbsolutePath().normalize();
+		Group group = groups.get(path);
+		if (group != null)
+			return group;
+		long now = System.currentTimeMillis();
+		int index = used.nextClearBit(0);
+		while (index < MAX_GROUPS && left[index] != 0 && now - left[index] < REUSE_DELAY)
+			index = used.nextClearBit(index + 1);
+		if (index >= MAX_GROUPS)
+			return null;
+		InetAddress address = address(index);
+		if (address == null || basePort + index > 0xffff)
+			return null;
+		group = new Group(index, address, basePort + index, transfer, source, blockSize);
+		used.set(index);
+		groups.put(path, group);
+		return group;
+	}
+
+	/*
+	 * Base address plus <index>, carried over its last 4 bytes. Null if that
+	 * wraps around or, for IPv4, leaves the first byte of the base one, the
+	 * 239.x.x.x scope by default.
+	 */
+	private InetAddress address(int index) {
+		byte[] address = base.getAddress();
+		ByteBuffer bytes = ByteBuffer.wrap(address);
+		int first = bytes.getInt(address.length - Integer.BYTES);
+		int last = first + index;
+		if (Integer.compareUnsigned(last, first) < 0 || address.length == 4 && last >>> 24 != first >>> 24)
+			return null;
+		bytes.putInt(address.length - Integer.BYTES, last);
+		try {
+			InetAddress group = InetAddress.getByAddress(address);
+			return group.isMulticastAddress() ? group : null;
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Master client done, the next client asking for the file starts a new
+	 * group. Its index is free again once the clients of this one gave up on
+	 * it.
+	 */
+	public synchronized void leave(Group group) {
+		groups.values().remove(group);
+		used.clear(group.index);
+		left[group.index] = System.currentTimeMillis();
+	}
+}
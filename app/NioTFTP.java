@@ -0,0 +1,1186 @@
+package app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import app.Messages.Message;
+
+/*
+ * Non-blocking implementation of CommInterface. Each transfer is a small
+ * state machine driven by the shared EventLoop, reacting to packets arriving
+ * on its channel and to the expiry of its retransmit timer, instead of
+ * blocking receives with socket timeouts. One loop thread drives every
+ * transfer of the process.
+ *
+ * Client side, sendFile and receiveFile block the caller until the transfer
+ * ends. Server sessions only start the transfer and return; closeConnection
+ * then releases the session once its transfer ends. Speaks the same protocol
+ * as TFTP, with the windowsize and blksize options.
+ */
+public class NioTFTP implements CommInterface {
+	// Only used from the loop thread
+	private static final ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTP.MAX_DATAGRAM_SIZE);
+	private static final ByteBuffer sendBuffer = ByteBuffer.allocate(TFTP.MAX_DATAGRAM_SIZE);
+
+	private enum State {
+		IDLE, WAIT_FIRST_ACK, SENDING, PREPARING, RECEIVING, LAST_RECEIVED, LAST_ACK_SENT, CLOSING, DONE
+	}
+
+	private static class Request {
+		private final Message message;
+		private final SocketAddress source;
+
+		private Request(Message message, SocketAddress source) {
+			this.message = message;
+			this.source = source;
+		}
+	}
+
+	private final PacketCodec codec;
+	private final CongestionControl.Factory congestionControl;
+	private final FileCache fileCache; // Server side, null if files are not
+										// cached
+	private EventLoop loop;
+	private DatagramChannel channel;
+	private SocketAddress serverAddress; // Server listening port, client side
+	private SocketAddress peer; // Transfer ID of the other end once known
+
+	// Listener and sessions
+	private BlockingQueue<Request> requests;
+	private Request lastRequest;
+	private Set<String> activeSessions = ConcurrentHashMap.newKeySet();
+	private String sessionKey;
+	private boolean session = false;
+	private boolean closeWhenDone = false;
+
+	// Transfer state
+	private State state = State.IDLE;
+	private CompletableFuture<Void> transfer;
+	private Message request;
+	private TransferOptions requestOptions;
+	private String requestedRange; // Client side, null for the whole file
+	private ByteRange range; // Part of the file transferred
+	private Message lastMessageSent;
+	private EventLoop.Timer timer;
+	private RttEstimator rtt = new RttEstimator();
+	private TransferMetrics metrics; // Of the transfer, seen by JMX
+	private TransferListener listener = ConsoleReporter.getDefault();
+	private String failure; // Of the transfer, null unless it failed
+	private int retries = 0;
+	private FileChannel file;
+	private String filePath;
+	private ByteBuffer content; // File, or range of it, blocks are slices of
+	private SharedFile shared; // Null if the file is cached
+	private MappedSegments segments; // Null unless past what one map holds
+	private long offset; // Of the range in the file
+	private long length; // Sent, or told by the sender when receiving, -1
+							// if not
+	private Message[] window;
+	private boolean[] sacked, resent;
+	private ReceiveWindow received; // Blocks written ahead
+	private WriteBehind writer; // Receiving, writes blocks off the loop
+	private TransferJournal journal; // Receive up to the end of the file, null
+									// otherwise
+	private boolean checkpointing; // Journal checkpoint queued to the writer
+	private boolean withheld; // Ack held back until the writer has room
+	private int blockNumber, ackedBlock, readBlock, lastBlock, lastAcked, gapAcked, duplicateAcks, recover;
+	private CongestionControl congestion;
+	private long lastAckTime;
+	private int windowSize = 1;
+	private boolean ackEvery = false;
+	private boolean selectiveAck = false;
+	private boolean rollover = false;
+	private int blockSize;
+	private int numOfRetry = 0;
+
+	public NioTFTP() {
+		this(new ProtobufCodec());
+	}
+
+	public NioTFTP(PacketCodec codec) {
+		this(codec, AimdCongestionControl::new);
+	}
+
+	public NioTFTP(PacketCodec codec, CongestionControl.Factory congestionControl) {
+		this(codec, congestionControl, null);
+	}
+
+	public NioTFTP(PacketCodec codec, CongestionControl.Factory congestionControl, FileCache fileCache) {
+		this.codec = codec;
+		this.congestionControl = congestionControl;
+		this.fileCache = fileCache;
+		blockSize = codec.defaultBlockSize();
+	}
+
+	@Override
+	public void initializeServer(int sourcePort) {
+		try {
+			loop = EventLoop.getDefault();
+			channel = DatagramChannel.open().bind(new InetSocketAddress(sourcePort));
+			channel.configureBlocking(false);
+			requests = new LinkedBlockingQueue<>();
+			loop.execute(() -> register(this::onRequest));
+		} catch (IOException e) {
+			System.out.println("Error initializing server: " + e);
+		}
+	}
+
+	@Override
+	public void initializeClient(String address, int destinationPort) {
+		try {
+			loop = EventLoop.getDefault();
+			channel = DatagramChannel.open().bind(null);
+			channel.configureBlocking(false);
+			serverAddress = new InetSocketAddress(address, destinationPort);
+			loop.execute(() -> register(this::onPacket));
+		} catch (IOException e) {
+			System.out.println("Error while initializing client: " + e);
+		}
+	}
+
+	@Override
+	public void sendCommand(String command) {
+		String[] tokens = command.split(",");
+		Message.RequestType requestType;
+		switch (tokens[0]) {
+		case "put":
+			requestType = Message.RequestType.WRQ;
+			break;
+		case "get":
+		case "mget": // No multicast, a plain get
+			requestType = Message.RequestType.RRQ;
+			break;
+		case "quit":
+			closeConnection();
+			System.exit(0);
+			return;
+		default:
+			System.out.println("Error: Command not recognized");
+			return;
+		}
+
+		// Request is sent when the transfer starts
+		TransferOptions options = new TransferOptions().put(TransferOptions.WINDOW_SIZE, TFTP.MAX_WINDOW_SIZE)
+				.put(TransferOptions.BLOCK_SIZE, TFTP.BLOCK_SIZE).put(TransferOptions.ACK_EVERY, 1)
+				.put(TransferOptions.SACK, 1).put(TransferOptions.ROLLOVER, 0);
+		requestedRange = tokens.length > 2 ? tokens[2] : null;
+		if (requestedRange != null)
+			options.put(TransferOptions.RANGE, requestedRange);
+		if (requestType == Message.RequestType.RRQ)
+			options.put(TransferOptions.TSIZE, 0);
+		request = Message.newBuilder().setOpCode(requestType).setFileName(tokens[1])
+				.setData(options.toByteString()).build();
+	}
+
+	@Override
+	public String getCommand() {
+		try {
+			lastRequest = requests.take();
+		} catch (InterruptedException e) {
+			return null;
+		}
+		Message message = lastRequest.message;
+		String requestTypeString = message.getOpCode() == Message.RequestType.WRQ ? "put" : "get";
+		return requestTypeString + "," + message.getFileName();
+	}
+
+	/*
+	 * Server side. Same as TFTP, a session per transfer with its own port.
+	 */
+	@Override
+	public CommInterface newSession() {
+		String key = lastRequest.source + "," + lastRequest.message.getOpCode() + ","
+				+ lastRequest.message.getFileName();
+		if (!activeSessions.add(key))
+			return null;
+
+		NioTFTP session = new NioTFTP(codec, congestionControl, fileCache);
+		try {
+			session.channel = DatagramChannel.open().bind(null);
+			session.channel.configureBlocking(false);
+		} catch (IOException e) {
+			activeSessions.remove(key);
+			System.out.println("Error initializing session: " + e);
+			return null;
+		}
+		session.loop = loop;
+		session.session = true;
+		session.peer = lastRequest.source;
+		session.requestOptions = TransferOptions.parse(lastRequest.message.getData());
+		session.activeSessions = activeSessions;
+		session.sessionKey = key;
+		session.listener = listener;
+		TransferEvents.requestAccepted(lastRequest.source.toString(), lastRequest.message, session.requestOptions);
+		loop.execute(() -> session.register(session::onPacket));
+		return session;
+	}
+
+	@Override
+	public boolean hasBlockingSessions() {
+		return false;
+	}
+
+	@Override
+	public void sendFile(String filePath) {
+		start(() -> startSend(filePath));
+	}
+
+	@Override
+	public void receiveFile(String filePath) {
+		start(() -> startReceive(filePath));
+	}
+
+	@Override
+	public void error(String e) {
+		loop.execute(() -> sendError(e));
+	}
+
+	@Override
+	public void setListener(TransferListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void closeConnection() {
+		if (!session) {
+			close();
+			return;
+		}
+		loop.execute(() -> {
+			closeWhenDone = true;
+			if (state == State.IDLE || state == State.DONE)
+				close();
+		});
+	}
+
+	/*
+	 * Run the transfer on the loop. Client waits for its end.
+	 */
+	private void start(Runnable startTransfer) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		loop.execute(() -> {
+			transfer = done;
+			if (!session)
+				peer = null;
+			windowSize = 1;
+			ackEvery = selectiveAck = rollover = false;
+			blockSize = codec.defaultBlockSize();
+			range = null;
+			blockNumber = 0;
+			rtt = new RttEstimator();
+			retries = 0;
+			numOfRetry = 0;
+			startTransfer.run();
+		});
+		if (!session)
+			done.join();
+	}
+
+	private void startSend(String filePath) {
+		track("send " + filePath);
+		try {
+			file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+			if (fileCache != null)
+				content = fileCache.get(Paths.get(filePath), file.size());
+			if (content == null)
+				shared = SharedFile.attach(Paths.get(filePath), file);
+			this.filePath = filePath;
+		} catch (IOException e) {
+			sendError("Error while reading file: " + e);
+			finish();
+			return;
+		}
+
+		if (!session) {
+			// Send WRQ, with the size of the file so that the server can
+			// refuse it before any data, and wait for ack #0
+			try {
+				TransferOptions options = TransferOptions.parse(request.getData()).put(TransferOptions.TSIZE,
+						file.size());
+				request = request.toBuilder().setData(options.toByteString()).build();
+			} catch (IOException e) {
+				sendError("Error while reading file: " + e);
+				finish();
+				return;
+			}
+			if (!send(request))
+				return;
+			rtt.sent(0);
+			state = State.WAIT_FIRST_ACK;
+			arm(rtt.timeout());
+			return;
+		}
+
+		// Acknowledge requested options before sending data
+		TransferOptions options = negotiate(requestOptions);
+		try {
+			if (!negotiateRange(options, file.size(), false))
+				return;
+			if (requestOptions.has(TransferOptions.TSIZE))
+				options.put(TransferOptions.TSIZE, file.size());
+		} catch (IOException e) {
+			sendError("Error while reading file: " + e);
+			finish();
+			return;
+		}
+		metrics.negotiated(requestOptions, options);
+		if (!options.isEmpty()) {
+			if (!send(Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(0)
+					.setData(options.toByteString()).build()))
+				return;
+			rtt.sent(0);
+			state = State.WAIT_FIRST_ACK;
+			arm(rtt.timeout());
+		} else {
+			startData();
+		}
+	}
+
+	private void startReceive(String filePath) {
+		track("receive " + filePath);
+		length = -1;
+		try {
+			// Stripes of a file are written side by side
+			boolean ranged = session ? requestOptions.has(TransferOptions.RANGE) : requestedRange != null;
+			file = ranged ? FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+					: FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING);
+			writer = new WriteBehind(file, filePath);
+			this.filePath = filePath;
+		} catch (IOException e) {
+			System.out.println("File was not found: " + e);
+			finish();
+			return;
+		}
+		lastAcked = 0;
+		gapAcked = -1;
+		lastAckTime = 0;
+		checkpointing = withheld = false;
+
+		if (!session) {
+			// Send RRQ, data or option ack expected
+			if (!send(request))
+				return;
+			rtt.sent(0);
+		} else {
+			// Send ack #0, with the accepted options if any, once the file is
+			// sized and journaled by the writer
+			TransferOptions options = negotiate(requestOptions);
+			long size = requestOptions.getLong(TransferOptions.TSIZE, -1);
+			try {
+				if (!negotiateRange(options, TransferJournal.recover(filePath, file.size(), size), true))
+					return;
+				if (requestOptions.has(TransferOptions.TSIZE) && !fits(size))
+					return;
+			} catch (IOException e) {
+				System.out.println("IOException: " + e);
+				finish();
+				return;
+			}
+			WriteBehind.Task prepare = null;
+			if (SessionOptions.toEnd(range, requestedRange)) {
+				long offset = range != null ? range.getOffset() : 0;
+				prepare = () -> journal(offset, size);
+				if (requestOptions.has(TransferOptions.TSIZE))
+					length = size - offset;
+			} else if (requestOptions.has(TransferOptions.TSIZE)) {
+				// Stripe of a put, the file is the size of the one sent
+				prepare = () -> TransferSize.resize(Paths.get(filePath), size);
+			}
+			if (requestOptions.has(TransferOptions.TSIZE))
+				options.put(TransferOptions.TSIZE, size);
+			state = State.PREPARING;
+			writer.then(prepare, onLoop(() -> {
+				Message.Builder ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(0);
+				metrics.negotiated(requestOptions, options);
+				if (!options.isEmpty())
+					ack.setData(options.toByteString());
+				if (!send(ack.build()))
+					return;
+				rtt.sent(1);
+				state = State.RECEIVING;
+				arm(rtt.receiveTimeout());
+			}));
+			return;
+		}
+		state = State.RECEIVING;
+		arm(rtt.receiveTimeout());
+	}
+
+	/*
+	 * Writer thread. Journal the receive from <offset> of a file of <size>
+	 * bytes, sized ahead if it is not -1.
+	 */
+	private void journal(long offset, long size) throws IOException {
+		file.truncate(offset);
+		journal = TransferJournal.open(filePath, blockSize, offset, size, range != null);
+		if (size != -1)
+			TransferSize.preallocate(file, size);
+	}
+
+	private void startData() {
+		// Map the file, or the range of it, unless it is cached. Shared with
+		// the other transfers sending it. Past what one map holds, a part
+		// at a time.
+		try {
+			if (requestedRange != null && range == null) {
+				sendError("Error: range not accepted");
+				finish();
+				return;
+			}
+			offset = range != null ? range.getOffset() : 0;
+			length = range != null ? range.length(file.size()) : file.size();
+			if (length < 0 || offset + length > file.size()) {
+				sendError("Error: range outside the file");
+				finish();
+				return;
+			}
+			if (length > Integer.MAX_VALUE) {
+				segments = new MappedSegments(file, filePath, offset, length, blockSize);
+			} else if (content != null) {
+				content = content.slice((int) offset, (int) length);
+			} else {
+				content = shared != null ? shared.getMap().slice((int) offset, (int) length)
+						: file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+		} catch (IOException e) {
+			sendError("Error while reading file: " + e);
+			finish();
+			return;
+		}
+
+		window = new Message[windowSize];
+		sacked = new boolean[windowSize];
+		resent = new boolean[windowSize];
+		if (length / blockSize + 1 > (rollover ? Integer.MAX_VALUE : codec.maxBlockNumber())) {
+			sendError("Error: file too large for block size " + blockSize);
+			finish();
+			return;
+		}
+		lastBlock = (int) (length / blockSize + 1);
+		ackedBlock = readBlock = blockNumber = duplicateAcks = recover = 0;
+		congestion = ackEvery ? congestionControl.create(windowSize) : new FixedWindow(windowSize);
+		state = State.SENDING;
+		if (fillWindow())
+			arm(rtt.timeout());
+	}
+
+	/*
+	 * Send data until window is full. Blocks are slices of the mapped file,
+	 * sent ones are kept in case the window has to be resent, except the ones
+	 * the receiver holds already.
+	 */
+	private boolean fillWindow() {
+		while (blockNumber < lastBlock && blockNumber - ackedBlock < congestion.window()) {
+			int slot = ++blockNumber % windowSize;
+			if (blockNumber > readBlock) {
+				long from = (long) (blockNumber - 1) * blockSize;
+				int size = (int) Math.min(blockSize, length - from);
+				if (shared != null)
+					shared.reached((int) (offset + from));
+				ByteString data;
+				try {
+					data = UnsafeByteOperations.unsafeWrap(
+							segments != null ? segments.slice(from, size) : content.slice((int) from, size));
+				} catch (IOException e) {
+					sendError("Error while reading file: " + e);
+					finish();
+					return false;
+				}
+				window[slot] = Message.newBuilder().setOpCode(Message.RequestType.DATA).setBlockNum(blockNumber)
+						.setData(data).build();
+				readBlock = blockNumber;
+				sacked[slot] = resent[slot] = false;
+				rtt.sent(blockNumber);
+				metrics.sent(size);
+			} else if (sacked[slot]) {
+				continue;
+			} else {
+				retransmitted(blockNumber);
+				rtt.resent();
+			}
+			if (!send(window[slot]))
+				return false;
+		}
+		return true;
+	}
+
+	private void register(EventLoop.Handler handler) {
+		try {
+			loop.register(channel, handler);
+		} catch (IOException e) {
+			System.out.println("Error registering channel: " + e);
+		}
+	}
+
+	/*
+	 * Listener. Queue requests for getCommand, ignore anything else.
+	 */
+	private void onRequest(DatagramChannel channel) {
+		try {
+			SocketAddress source;
+			while ((source = channel.receive(receiveBuffer.clear())) != null) {
+				Message message;
+				try {
+					// Decoded from a copy, requests are queued
+					message = codec.decode(Arrays.copyOf(receiveBuffer.array(), receiveBuffer.position()),
+							receiveBuffer.position());
+				} catch (InvalidProtocolBufferException e) {
+					continue;
+				}
+				if (message.getOpCode() == Message.RequestType.RRQ || message.getOpCode() == Message.RequestType.WRQ)
+					requests.add(new Request(message, source));
+			}
+		} catch (IOException e) {
+			System.out.println("Error while receiving request: " + e);
+		}
+	}
+
+	/*
+	 * Transfer. Check packet source then feed the state machine.
+	 */
+	private void onPacket(DatagramChannel channel) {
+		try {
+			SocketAddress source;
+			while (channel.isOpen() && (source = channel.receive(receiveBuffer.clear())) != null) {
+				// Parse in place, data is used before the next receive
+				Message message;
+				try {
+					message = codec.decode(receiveBuffer.array(), receiveBuffer.position());
+				} catch (InvalidProtocolBufferException e) {
+					continue;
+				}
+
+				// Client side, take the server transfer ID from its first
+				// reply only
+				if (peer == null) {
+					if (state == State.IDLE || state == State.DONE || !sameHost(source, serverAddress)
+							|| !TFTP.isFirstReply(message))
+						continue;
+					peer = source;
+				} else if (!peer.equals(source)) {
+					continue;
+				}
+
+				if (message.getOpCode() == Message.RequestType.ERROR) {
+					System.out.println("Error packet received: " + message.getErrMsg());
+					failure = "Error packet received: " + message.getErrMsg();
+					finish();
+					continue;
+				}
+
+				// Block numbers rolled over
+				if (message.getOpCode() == Message.RequestType.DATA
+						|| message.getOpCode() == Message.RequestType.ACK) {
+					int block = codec.blockNumber(message.getBlockNum(), blockNumber);
+					if (block != message.getBlockNum())
+						message = message.toBuilder().setBlockNum(block).build();
+				}
+				onMessage(message);
+			}
+		} catch (IOException e) {
+			System.out.println("Error while receiving packet: " + e);
+			finish();
+		}
+	}
+
+	private void onMessage(Message message) {
+		switch (state) {
+		case WAIT_FIRST_ACK:
+			if (message.getOpCode() == Message.RequestType.ACK && message.getBlockNum() == 0) {
+				// Ack of a WRQ may carry the options accepted by the server
+				rtt.acked(0);
+				if (!session && message.hasData() && !acceptOptions(TransferOptions.parse(message.getData())))
+					return;
+				retries = 0;
+				startData();
+			}
+			break;
+		case SENDING:
+			if (message.getOpCode() != Message.RequestType.ACK)
+				break;
+			if (message.getBlockNum() <= ackedBlock)
+				metrics.duplicateAck();
+			if (message.getBlockNum() > ackedBlock && message.getBlockNum() <= readBlock) {
+				// Ack is cumulative. Receiver acking window ends only: short
+				// of the window, restart the window after it.
+				retries = duplicateAcks = 0;
+				congestion.onAck(message.getBlockNum() - ackedBlock);
+				ackedBlock = message.getBlockNum();
+				blockNumber = Math.max(blockNumber, ackedBlock);
+				rtt.acked(ackedBlock);
+				listener.progress(metrics.getId(), Math.min((long) ackedBlock * blockSize, length), length);
+				if (!ackEvery && !selectiveAck && ackedBlock < blockNumber) {
+					congestion.onLoss();
+					blockNumber = ackedBlock;
+				}
+				if (ackedBlock == lastBlock) {
+					finish();
+					break;
+				} else if (fillWindow()) {
+					arm(rtt.timeout());
+				}
+			} else if (ackEvery && !message.hasData() && message.getBlockNum() == ackedBlock
+					&& blockNumber > ackedBlock && ++duplicateAcks == TFTP.DUPLICATE_ACKS) {
+				// Block after the ack lost and no selective ack, resend from
+				// it
+				congestion.onLoss();
+				blockNumber = ackedBlock;
+				if (fillWindow())
+					arm(rtt.timeout());
+			}
+			if (selectiveAck && message.getBlockNum() == ackedBlock && message.hasData())
+				resendMissing(SelectiveAck.parse(message.getData()));
+			break;
+		case RECEIVING:
+			if (blockNumber == 0 && !session && TransferOptions.isOptionAck(message)) {
+				// Options accepted by the sender, ack them with ack #0
+				rtt.acked(0);
+				TransferOptions accepted = TransferOptions.parse(message.getData());
+				if (!acceptOptions(accepted))
+					return;
+				if (accepted.has(TransferOptions.TSIZE) && journal == null
+						&& SessionOptions.toEnd(range, requestedRange)) {
+					reserve(accepted);
+					return;
+				}
+				sendAck(0);
+				arm(rtt.receiveTimeout());
+			} else if (message.getOpCode() == Message.RequestType.DATA) {
+				retries = 0;
+				receiveData(message);
+			}
+			break;
+		case LAST_RECEIVED:
+			// Resent data, acked once the file is on disk
+			if (message.getOpCode() == Message.RequestType.DATA) {
+				retries = 0;
+				metrics.duplicateData();
+			}
+			break;
+		case LAST_ACK_SENT:
+			// Ack again data resent by the sender until it goes quiet
+			if (message.getOpCode() == Message.RequestType.DATA) {
+				retries = 0;
+				metrics.duplicateData();
+				if (System.currentTimeMillis() - lastAckTime >= rtt.timeout() / 2)
+					sendAck(blockNumber);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * Resend the blocks missing at the receiver, once until the next timeout.
+	 * One loss per window for congestion control.
+	 */
+	private void resendMissing(BitSet sack) {
+		BitSet received = SelectiveAck.bound(sack, ackedBlock, readBlock, windowSize);
+		for (int bit = received.nextSetBit(0); bit != -1; bit = received.nextSetBit(bit + 1))
+			sacked[(ackedBlock + 1 + bit) % windowSize] = true;
+		BitSet missing = SelectiveAck.missing(received, ackedBlock, readBlock);
+		boolean lost = false;
+		for (int bit = missing.nextSetBit(0); bit != -1; bit = missing.nextSetBit(bit + 1)) {
+			int block = ackedBlock + 1 + bit, slot = block % windowSize;
+			if (resent[slot])
+				continue;
+			resent[slot] = lost = true;
+			retransmitted(block);
+			rtt.resent();
+			if (!send(window[slot]))
+				return;
+		}
+		if (lost && ackedBlock >= recover) {
+			congestion.onLoss();
+			recover = blockNumber;
+		}
+	}
+
+	private void receiveData(Message message) {
+		boolean ack = false, lastReceived = false;
+		if (received == null) {
+			if (requestedRange != null && range == null) {
+				sendError("Error: range not accepted");
+				finish();
+				return;
+			}
+			received = new ReceiveWindow(writer, range != null ? range.getOffset() : 0, windowSize, blockSize);
+		}
+		try {
+			if (message.getBlockNum() > blockNumber && writer.room() == 0) {
+				// Sent past the acks held back, lost rather than waited for
+				return;
+			}
+			if (message.getBlockNum() == blockNumber + 1) {
+				// Next block in sequence, then the ones written ahead of it.
+				// Ack at the end of a window.
+				received.write(message.getBlockNum(), message.getData().asReadOnlyByteBuffer());
+				metrics.received(message.getData().size());
+				blockNumber = received.advance(message.getBlockNum());
+				lastReceived = message.getData().size() < blockSize || received.isLast(blockNumber);
+				if (!lastReceived && journal != null && !checkpointing && journal.due(received.end(blockNumber))) {
+					// Acks go on meanwhile, a resume starts from the last
+					// checkpoint done
+					TransferJournal journal = this.journal;
+					long end = received.end(blockNumber);
+					checkpointing = true;
+					writer.then(() -> journal.checkpoint(file, end), onLoop(() -> checkpointing = false));
+				}
+				rtt.acked(blockNumber);
+				// Whole blocks so far, completed tells the end
+				if (!lastReceived)
+					listener.progress(metrics.getId(), received.end(blockNumber) - (range != null ? range.getOffset() : 0),
+							range != null && range.getLength() != -1 ? range.getLength() : length);
+				ack = lastReceived || ackEvery || blockNumber - lastAcked >= windowSize
+						|| selectiveAck && !received.isEmpty();
+			} else if (message.getBlockNum() > blockNumber) {
+				// Missed a block, write this one ahead. Ack last one in
+				// sequence, with the missing ones if selective acks are on.
+				// Otherwise once, unless the sender counts duplicate acks.
+				if (received.writeAhead(message.getBlockNum(), blockNumber + 1,
+						message.getData().asReadOnlyByteBuffer()))
+					metrics.received(message.getData().size());
+				else
+					metrics.duplicateData();
+				ack = selectiveAck || ackEvery || gapAcked != blockNumber;
+				gapAcked = blockNumber;
+			} else {
+				// Resent data, ack again once per burst
+				metrics.duplicateData();
+				ack = System.currentTimeMillis() - lastAckTime >= rtt.timeout() / 2;
+			}
+		} catch (IOException e) {
+			sendError("Error while writing file: " + e);
+			finish();
+			return;
+		}
+		if (lastReceived) {
+			// All of the file written and made to last before the last ack
+			state = State.LAST_RECEIVED;
+			if (timer != null)
+				timer.cancel();
+			TransferJournal journal = this.journal;
+			writer.then(journal != null ? () -> journal.complete(file) : null, onLoop(() -> {
+				if (!sendAck(blockNumber))
+					return;
+				state = State.LAST_ACK_SENT;
+				retries = 0;
+				arm(rtt.receiveTimeout());
+			}));
+			return;
+		}
+		if (ack && !ackWhenRoom())
+			return;
+		arm(rtt.receiveTimeout());
+	}
+
+	/*
+	 * Ack the blocks received in sequence once the writer has room for the
+	 * window the ack lets the sender send. Until then the ack is held back,
+	 * the sender waits and the loop goes on with other sessions.
+	 */
+	private boolean ackWhenRoom() {
+		if (writer.room() >= windowSize)
+			return sendAck(blockNumber);
+		if (!withheld) {
+			withheld = true;
+			writer.whenRoom(windowSize, onLoop(() -> {
+				withheld = false;
+				if (state == State.RECEIVING && ackWhenRoom())
+					arm(rtt.receiveTimeout());
+			}));
+		}
+		return true;
+	}
+
+	/*
+	 * Receiving. Run <then> on the loop once the writer calls back, unless
+	 * the transfer ended meanwhile. The event loop never waits for the disk.
+	 */
+	private Consumer<IOException> onLoop(Runnable then) {
+		WriteBehind writer = this.writer;
+		return failed -> loop.execute(() -> {
+			if (this.writer != writer || state == State.CLOSING)
+				return;
+			if (failed != null) {
+				sendError("Error while writing file: " + failed);
+				finish();
+			} else {
+				then.run();
+			}
+		});
+	}
+
+	private void onTimeout() {
+		switch (state) {
+		case WAIT_FIRST_ACK:
+			if (++retries == 5) {
+				sendError("Ack never received");
+				finish();
+				return;
+			}
+			metrics.timeout(blockNumber);
+			retransmitted(blockNumber);
+			rtt.backoff();
+			if (send(lastMessageSent))
+				arm(rtt.timeout());
+			break;
+		case SENDING:
+			// Resend the window from the last ack
+			metrics.timeout(ackedBlock);
+			if (++retries == TFTP.MAX_TIMEOUTS) {
+				sendError("Ack never received");
+				finish();
+				return;
+			}
+			rtt.backoff();
+			congestion.onTimeout();
+			blockNumber = ackedBlock;
+			Arrays.fill(resent, false);
+			if (fillWindow())
+				arm(rtt.timeout());
+			break;
+		case RECEIVING:
+			metrics.timeout(blockNumber);
+			if (++retries == TFTP.MAX_TIMEOUTS) {
+				sendError("Receiver timeout");
+				finish();
+				return;
+			}
+			rtt.backoff();
+			// Lost request, or repeat last ack so the sender restarts its
+			// window from there
+			if (lastMessageSent.getOpCode() == Message.RequestType.RRQ || windowSize > 1 || blockNumber == 0) {
+				if (!send(lastMessageSent))
+					return;
+			}
+			arm(rtt.receiveTimeout());
+			break;
+		case LAST_ACK_SENT:
+			// Sender quiet, last ack got through
+			if (++retries == TFTP.DALLY_TIMEOUTS)
+				finish();
+			else
+				arm(rtt.receiveTimeout());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void arm(long delay) {
+		if (timer != null)
+			timer.cancel();
+		timer = loop.schedule(delay, this::onTimeout);
+	}
+
+	private void finish() {
+		if (state == State.CLOSING)
+			return;
+		if (timer != null)
+			timer.cancel();
+		timer = null;
+		// Unfinished, keep only the blocks received in sequence so that the
+		// transfer can resume from the end of the file
+		boolean truncate = state == State.RECEIVING && (received != null || journal != null)
+				&& SessionOptions.toEnd(range, requestedRange);
+		long end = received != null ? received.end(blockNumber) : range != null ? range.getOffset() : 0;
+		boolean done = state == State.LAST_ACK_SENT || state == State.SENDING && ackedBlock == lastBlock;
+		FileChannel file = this.file;
+		TransferJournal journal = this.journal;
+		WriteBehind.Task close = () -> {
+			try {
+				if (truncate) {
+					file.truncate(end);
+					if (journal != null)
+						journal.checkpoint(file, end);
+				}
+			} finally {
+				if (file != null)
+					file.close();
+			}
+		};
+		if (writer == null) {
+			try {
+				close.run();
+			} catch (IOException e) {
+				System.out.println("IOException: " + e);
+			}
+			finished(done);
+			return;
+		}
+		// Queued blocks first, then the file can be truncated and closed,
+		// all off the loop
+		state = State.CLOSING;
+		writer.close(close, failed -> loop.execute(() -> {
+			if (failed != null) {
+				System.out.println("Error while writing file: " + failed);
+				try {
+					file.close();
+				} catch (IOException e) {
+					System.out.println("IOException: " + e);
+				}
+			}
+			writer = null;
+			finished(done);
+		}));
+	}
+
+	private void finished(boolean done) {
+		state = State.DONE;
+		if (metrics != null) {
+			if (done)
+				listener.completed(metrics.getId(), metrics.getBytes(), numOfRetry);
+			else
+				listener.error(metrics.getId(), failure != null ? failure : "Transfer interrupted");
+			metrics.finish();
+		}
+		metrics = null;
+		file = null;
+		filePath = null;
+		content = null;
+		segments = null;
+		if (shared != null)
+			shared.detach();
+		shared = null;
+		window = null;
+		received = null;
+		if (journal != null)
+			journal.close();
+		journal = null;
+		if (session && closeWhenDone)
+			close();
+		if (transfer != null)
+			transfer.complete(null);
+	}
+
+	private void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Error while closing channel: " + e);
+		}
+		if (sessionKey != null)
+			activeSessions.remove(sessionKey);
+	}
+
+	private boolean sendAck(int block) {
+		Message.Builder ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(block);
+		if (selectiveAck && received != null && !received.isEmpty() && block > 0)
+			ack.setData(received.selectiveAck(block));
+		if (!send(ack.build()))
+			return false;
+		// Only the first ack of a block is timed
+		if (block > lastAcked)
+			rtt.sent(block + 1);
+		else
+			rtt.resent();
+		lastAcked = block;
+		lastAckTime = System.currentTimeMillis();
+		return true;
+	}
+
+	private boolean send(Message message) {
+		int size = codec.encodedSize(message);
+		if (size > codec.maxPacketSize(blockSize)) {
+			sendError("Error: packet too large of size " + size + " bytes");
+			finish();
+			return false;
+		}
+
+		// Until the server session replies, send to its listening port
+		try {
+			channel.send(encode(message), peer != null ? peer : serverAddress);
+			lastMessageSent = message;
+		} catch (IOException e) {
+			System.out.println("Error while sending command: " + e);
+			finish();
+			return false;
+		}
+		return true;
+	}
+
+	private void sendError(String errorMessage) {
+		System.out.println(errorMessage);
+		failure = errorMessage;
+		Message message = Message.newBuilder().setOpCode(Message.RequestType.ERROR)
+				.setErrCode(Message.ErrCode.AccessViolation).setErrMsg(errorMessage).build();
+		try {
+			SocketAddress destination = peer != null ? peer : serverAddress;
+			if (destination != null && channel.isOpen()) {
+				channel.send(encode(message), destination);
+				System.out.println("Error packet sent");
+			}
+		} catch (IOException e) {
+			System.out.println("Error while sending error packet: " + e);
+		}
+	}
+
+	private ByteBuffer encode(Message message) {
+		return sendBuffer.clear().limit(codec.encode(message, sendBuffer.array()));
+	}
+
+	/*
+	 * Server side. Use the options picked among the ones requested by the
+	 * client. Returns the accepted options, empty if none.
+	 */
+	private TransferOptions negotiate(TransferOptions requested) {
+		SessionOptions options = SessionOptions.negotiate(requested, blockSize);
+		use(options);
+		return options.getAccepted();
+	}
+
+	private void use(SessionOptions options) {
+		windowSize = options.getWindowSize();
+		blockSize = options.getBlockSize();
+		ackEvery = options.isAckEvery();
+		selectiveAck = options.isSelectiveAck();
+		rollover = options.isRollover();
+		sizeReceiveBuffer();
+	}
+
+	/*
+	 * A transfer called <name> starts, seen by JMX, recordings and the
+	 * listener.
+	 */
+	private void track(String name) {
+		metrics = TransferMetrics.start(name);
+		rtt.record(metrics);
+		failure = null;
+		listener.started(metrics.getId(), name);
+	}
+
+	/*
+	 * Packet sent again, <block> or the request or ack before it.
+	 */
+	private void retransmitted(int block) {
+		numOfRetry++;
+		metrics.retransmit(block);
+		listener.retry(metrics.getId(), block);
+	}
+
+	/*
+	 * Receiver side. Whether the <size> bytes of the file fit. Sends an error
+	 * and finishes if they do not.
+	 */
+	private boolean fits(long size) throws IOException {
+		String refused = TransferSize.refuse(Paths.get(filePath), file, size);
+		if (refused != null) {
+			sendError("Error: " + refused);
+			finish();
+		}
+		return refused == null;
+	}
+
+	/*
+	 * Client side. Size the file being received before the first block, as
+	 * accepted by the server, and journal it like the server does. Ack #0 once
+	 * the writer is done.
+	 */
+	private void reserve(TransferOptions accepted) {
+		long offset = range != null ? range.getOffset() : 0;
+		long size = accepted.getLong(TransferOptions.TSIZE, -1);
+		try {
+			if (!fits(size))
+				return;
+		} catch (IOException e) {
+			System.out.println("IOException: " + e);
+			finish();
+			return;
+		}
+		String refused = range != null ? TransferJournal.refuse(filePath, size) : null;
+		if (refused != null) {
+			sendError("Error: " + refused);
+			finish();
+			return;
+		}
+		length = size - offset;
+		state = State.PREPARING;
+		if (timer != null)
+			timer.cancel();
+		writer.then(() -> journal(offset, size), onLoop(() -> {
+			sendAck(0);
+			state = State.RECEIVING;
+			arm(rtt.receiveTimeout());
+		}));
+	}
+
+	/*
+	 * Client side. Apply the options accepted by the server. Sends an error
+	 * and finishes if they are not acceptable.
+	 */
+	private boolean acceptOptions(TransferOptions accepted) {
+		metrics.negotiated(TransferOptions.parse(request.getData()), accepted);
+		String refused = SessionOptions.refuse(accepted);
+		if (refused != null) {
+			sendError("Error: " + refused);
+			finish();
+			return false;
+		}
+		use(SessionOptions.accept(accepted, blockSize));
+		if (requestedRange != null) {
+			range = SessionOptions.acceptedRange(accepted, blockSize);
+			if (range == null) {
+				sendError("Error: range not accepted");
+				finish();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Server side. Add the range of the file asked by the client to the
+	 * accepted options. When <receiving>, <fileSize> is the size of the
+	 * partial file a put resumes from. Sends an error and finishes if it is
+	 * not a range of the file.
+	 */
+	private boolean negotiateRange(TransferOptions accepted, long fileSize, boolean receiving) {
+		if (!requestOptions.has(TransferOptions.RANGE))
+			return true;
+		String value = requestOptions.get(TransferOptions.RANGE);
+		range = SessionOptions.requestedRange(value, fileSize, blockSize, receiving);
+		if (range == null) {
+			sendError("Error: invalid range " + value);
+			finish();
+			return false;
+		}
+		accepted.put(TransferOptions.RANGE, range.toString());
+		return true;
+	}
+
+	private void sizeReceiveBuffer() {
+		try {
+			int size = windowSize * codec.maxPacketSize(blockSize);
+			if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < size)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+		} catch (IOException e) {
+			System.out.println("Error while sizing receive buffer: " + e);
+		}
+	}
+
+	private static boolean sameHost(SocketAddress a, SocketAddress b) {
+		return ((InetSocketAddress) a).getAddress().equals(((InetSocketAddress) b).getAddress());
+	}
+}
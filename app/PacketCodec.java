@@ -0,0 +1,61 @@
+package app;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import app.Messages.Message;
+
+/*
+ * Wire format of the packets. Transfers work on Message and leave encoding to
+ * the codec, so the same engines speak either the protobuf format of this
+ * project or the standard TFTP one.
+ */
+public interface PacketCodec {
+
+	/*
+	 * Bytes added to the data of a DATA packet.
+	 */
+	public int overhead();
+
+	/*
+	 * Block size used when none was negotiated.
+	 */
+	public int defaultBlockSize();
+
+	/*
+	 * Highest block number the format can carry.
+	 */
+	public int maxBlockNumber();
+
+	/*
+	 * Largest packet carrying blocks of <blockSize>.
+	 */
+	public default int maxPacketSize(int blockSize) {
+		return Math.min(blockSize + overhead(), TFTP.MAX_DATAGRAM_SIZE);
+	}
+
+	/*
+	 * Block number of a received packet carrying <block>, near <expected>.
+	 * Formats with short block numbers roll them over to 0 past the highest
+	 * one (rollover option), the block meant is the nearest to <expected>.
+	 */
+	public default int blockNumber(int block, int expected) {
+		return block;
+	}
+
+	/*
+	 * Size of the encoded message.
+	 */
+	public int encodedSize(Message message);
+
+	/*
+	 * Encode into <buf>, which holds at least encodedSize bytes. Returns the
+	 * length.
+	 */
+	public int encode(Message message, byte[] buf);
+
+	/*
+	 * Decode the first <length> bytes of <buf>. The data of the message may
+	 * be a view of <buf> and is only valid until <buf> is reused.
+	 */
+	public Message decode(byte[] buf, int length) throws InvalidProtocolBufferException;
+}
@@ -0,0 +1,63 @@
+package app;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import app.Messages.Message;
+
+/*
+ * Original format of the project, the Message serialized by protobuf. Header
+ * fields are varints so the overhead is only an upper bound.
+ */
+public class ProtobufCodec implements PacketCodec {
+	private static final int OVERHEAD = 200; // Depends on Protobuf
+												// implementation. Not
+												// exactly 4
+	private static final int DEFAULT_BLOCK_SIZE = 1000;
+
+	@Override
+	public int overhead() {
+		return OVERHEAD;
+	}
+
+	@Override
+	public int defaultBlockSize() {
+		return DEFAULT_BLOCK_SIZE;
+	}
+
+	@Override
+	public int maxBlockNumber() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int encodedSize(Message message) {
+		return message.getSerializedSize();
+	}
+
+	@Override
+	public int encode(Message message, byte[] buf) {
+		CodedOutputStream output = CodedOutputStream.newInstance(buf);
+		try {
+			message.writeTo(output);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Buffer too small for message", e);
+		}
+		return output.getTotalBytesWritten();
+	}
+
+	/*
+	 * Parse without copying the data out of the buffer. Only a stream over an
+	 * unsafely wrapped buffer aliases instead of copying.
+	 */
+	@Override
+	public Message decode(byte[] buf, int length) throws InvalidProtocolBufferException {
+		CodedInputStream input = UnsafeByteOperations.unsafeWrap(buf, 0, length).newCodedInput();
+		input.enableAliasing(true);
+		return Message.parser().parseFrom(input);
+	}
+}
@@ -0,0 +1,60 @@
+package app;
+
+import java.nio.MappedByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Sender side. Blocks are slices of the mapped file, so a block not in memory
+ * yet is read from disk by the page fault of the sender when it serializes
+ * it, in the middle of the transfer. Chunks of the file ahead of the block
+ * being sent are loaded by reader threads instead, CHUNKS of them at once so
+ * that disks serving several reads in parallel do. The sender never waits for
+ * them: a chunk not loaded in time is read by the sender as before. Senders
+ * sharing the file share this too, each chunk is asked once whatever the
+ * number of senders and wherever they are in the file.
+ */
+public class ReadAhead {
+	static final int CHUNK_SIZE = 256 * 1024;
+	static final int CHUNKS = 4; // Loaded ahead of the sender
+	private static final int READERS = 4; // Loading threads, all transfers
+
+	private static final ExecutorService readers = Executors.newFixedThreadPool(READERS, runnable -> {
+		Thread thread = new Thread(runnable, "tftp-read-ahead");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final MappedByteBuffer map;
+	private final String file; // Mapped, for recordings
+	private final long offset; // Of the map in the file
+	private final BitSet asked = new BitSet(); // Chunks asked so far
+
+	public ReadAhead(MappedByteBuffer map, String file, long offset) {
+		this.map = map;
+		this.file = file;
+		this.offset = offset;
+	}
+
+	/*
+	 * A sender is about to read at <position> in the map. Keeps the CHUNKS
+	 * chunks from there asked.
+	 */
+	public synchronized void reached(int position) {
+		int last = Math.min(position / CHUNK_SIZE + CHUNKS, (map.limit() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		for (int chunk = position / CHUNK_SIZE; chunk < last; chunk++) {
+			if (asked.get(chunk))
+				continue;
+			asked.set(chunk);
+			int from = chunk * CHUNK_SIZE, length = Math.min(CHUNK_SIZE, map.limit() - from);
+			readers.execute(() -> load(from, length));
+		}
+	}
+
+	private void load(int from, int length) {
+		TransferEvents.DiskRead event = TransferEvents.beginDiskRead();
+		map.slice(from, length).load();
+		TransferEvents.diskRead(event, file, offset + from, length);
+	}
+}
@@ -0,0 +1,94 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * Receiver side of a windowed transfer. Every block is written at its own
+ * place in the file, so blocks arriving past a missing one are written right
+ * away instead of being dropped and sent again. Only which ones arrived is
+ * kept, one bit per block of the window: the sender never gets more than a
+ * window ahead of the last ack. Writes are queued to <file>, not waited for.
+ */
+public class ReceiveWindow {
+	private final WriteBehind file;
+	private final long offset; // Of block 1 in the file
+	private final int size;
+	private final int blockSize;
+	private final BitSet written = new BitSet(); // Ahead of the expected
+													// block, by slot
+	private int lastBlock = -1; // Short block written ahead, if any
+
+	public ReceiveWindow(WriteBehind file, long offset, int size, int blockSize) {
+		this.file = file;
+		this.offset = offset;
+		this.size = size;
+		this.blockSize = blockSize;
+	}
+
+	/*
+	 * Write <block>, the expected one.
+	 */
+	public void write(int block, ByteBuffer data) throws IOException {
+		file.write(offset + (long) (block - 1) * blockSize, data);
+	}
+
+	/*
+	 * Write <block> received while <expected> is missing. Returns false if it
+	 * is out of the window or already written.
+	 */
+	public boolean writeAhead(int block, int expected, ByteBuffer data) throws IOException {
+		int slot = block % size;
+		if (block <= expected || block - expected >= size || written.get(slot))
+			return false;
+		if (data.remaining() < blockSize)
+			lastBlock = block;
+		write(block, data);
+		written.set(slot);
+		return true;
+	}
+
+	/*
+	 * Last block in sequence once <block> is written, counting the ones
+	 * written ahead of it.
+	 */
+	public int advance(int block) {
+		while (block != lastBlock && written.get((block + 1) % size)) {
+			written.clear(++block % size);
+		}
+		return block;
+	}
+
+	/*
+	 * Whether <block> is the short one ending the file.
+	 */
+	public boolean isLast(int block) {
+		return block == lastBlock;
+	}
+
+	/*
+	 * Position in the file right after <block>.
+	 */
+	public long end(int block) {
+		return offset + (long) block * blockSize;
+	}
+
+	public boolean isEmpty() {
+		return written.isEmpty();
+	}
+
+	/*
+	 * Selective ack of the blocks written past <acked>.
+	 */
+	public ByteString selectiveAck(int acked) {
+		BitSet received = new BitSet(size);
+		for (int i = 0; i < size - 1; i++) {
+			if (written.get((acked + 1 + i) % size))
+				received.set(i);
+		}
+		return SelectiveAck.encode(received);
+	}
+}
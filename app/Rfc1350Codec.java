@@ -0,0 +1,180 @@
+package app;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import app.Messages.Message;
+
+/*
+ * Standard TFTP packets (RFC 1350), fixed offsets after a 2 byte opcode:
+ *   RRQ/WRQ | filename | 0 | mode | 0 | options (RFC 2347)
+ *   DATA    | block #  | data
+ *   ACK     | block #  | selective ack (sack option only)
+ *   ERROR   | code     | message | 0
+ *   OACK    | options
+ * The option ack has its own opcode and maps to the ack #0 carrying data used
+ * by the other codec. Block numbers are 16 bits, rolled over to 0 past the
+ * highest one.
+ */
+public class Rfc1350Codec implements PacketCodec {
+	private static final int OVERHEAD = 4; // Opcode and block #
+	private static final int DEFAULT_BLOCK_SIZE = 512;
+	private static final int MAX_BLOCK_NUMBER = 0xFFFF;
+	private static final int OACK = 6;
+	private static final String MODE = "octet"; // netascii is served as
+												// octet, no line ending
+												// translation
+
+	@Override
+	public int overhead() {
+		return OVERHEAD;
+	}
+
+	@Override
+	public int defaultBlockSize() {
+		return DEFAULT_BLOCK_SIZE;
+	}
+
+	@Override
+	public int maxBlockNumber() {
+		return MAX_BLOCK_NUMBER;
+	}
+
+	@Override
+	public int blockNumber(int block, int expected) {
+		int nearest = expected + (short) (block - expected);
+		return nearest < 0 ? block : nearest;
+	}
+
+	@Override
+	public int encodedSize(Message message) {
+		switch (message.getOpCode()) {
+		case RRQ:
+		case WRQ:
+			return 2 + utf8(message.getFileName()).length + 1 + MODE.length() + 1 + message.getData().size();
+		case ACK:
+			return (TransferOptions.isOptionAck(message) ? 2 : 4) + message.getData().size();
+		case ERROR:
+			return 4 + utf8(message.getErrMsg()).length + 1;
+		default:
+			return 4 + message.getData().size();
+		}
+	}
+
+	@Override
+	public int encode(Message message, byte[] buf) {
+		int pos;
+		switch (message.getOpCode()) {
+		case RRQ:
+		case WRQ:
+			pos = putShort(buf, 0, message.getOpCode().getNumber());
+			pos = putString(buf, pos, utf8(message.getFileName()));
+			pos = putString(buf, pos, utf8(MODE));
+			return putData(buf, pos, message.getData());
+		case ACK:
+			if (TransferOptions.isOptionAck(message))
+				return putData(buf, putShort(buf, 0, OACK), message.getData());
+			pos = putShort(buf, 0, message.getOpCode().getNumber());
+			pos = putShort(buf, pos, message.getBlockNum());
+			return putData(buf, pos, message.getData());
+		case ERROR:
+			pos = putShort(buf, 0, message.getOpCode().getNumber());
+			pos = putShort(buf, pos, message.getErrCode().getNumber());
+			return putString(buf, pos, utf8(message.getErrMsg()));
+		default:
+			pos = putShort(buf, 0, message.getOpCode().getNumber());
+			pos = putShort(buf, pos, message.getBlockNum());
+			return putData(buf, pos, message.getData());
+		}
+	}
+
+	@Override
+	public Message decode(byte[] buf, int length) throws InvalidProtocolBufferException {
+		if (length < 2)
+			throw new InvalidProtocolBufferException("Packet too short");
+		int opCode = getShort(buf, 0);
+		Message.Builder message = Message.newBuilder();
+		int pos = 2;
+		switch (opCode) {
+		case 1: // RRQ
+		case 2: // WRQ
+			int fileNameEnd = findZero(buf, pos, length);
+			int modeEnd = findZero(buf, fileNameEnd + 1, length);
+			String mode = new String(buf, fileNameEnd + 1, modeEnd - fileNameEnd - 1, StandardCharsets.US_ASCII);
+			if (!mode.equalsIgnoreCase("octet") && !mode.equalsIgnoreCase("netascii"))
+				throw new InvalidProtocolBufferException("Transfer mode not supported: " + mode);
+			message.setOpCode(Message.RequestType.forNumber(opCode))
+					.setFileName(new String(buf, pos, fileNameEnd - pos, StandardCharsets.UTF_8));
+			if (modeEnd + 1 < length)
+				message.setData(UnsafeByteOperations.unsafeWrap(buf, modeEnd + 1, length - modeEnd - 1));
+			break;
+		case 3: // DATA
+			checkLength(length, 4);
+			message.setOpCode(Message.RequestType.DATA).setBlockNum(getShort(buf, pos))
+					.setData(UnsafeByteOperations.unsafeWrap(buf, 4, length - 4));
+			break;
+		case 4: // ACK
+			checkLength(length, 4);
+			message.setOpCode(Message.RequestType.ACK).setBlockNum(getShort(buf, pos));
+			if (length > 4)
+				message.setData(UnsafeByteOperations.unsafeWrap(buf, 4, length - 4));
+			break;
+		case 5: // ERROR
+			checkLength(length, 4);
+			Message.ErrCode errCode = Message.ErrCode.forNumber(getShort(buf, pos));
+			int end = length > 4 && buf[length - 1] == 0 ? length - 1 : length;
+			message.setOpCode(Message.RequestType.ERROR)
+					.setErrCode(errCode != null ? errCode : Message.ErrCode.AccessViolation)
+					.setErrMsg(new String(buf, 4, end - 4, StandardCharsets.UTF_8));
+			break;
+		case OACK:
+			message.setOpCode(Message.RequestType.ACK).setBlockNum(0)
+					.setData(UnsafeByteOperations.unsafeWrap(buf, 2, length - 2));
+			break;
+		default:
+			throw new InvalidProtocolBufferException("Unknown opcode " + opCode);
+		}
+		return message.build();
+	}
+
+	private static int putShort(byte[] buf, int pos, int value) {
+		buf[pos] = (byte) (value >> 8);
+		buf[pos + 1] = (byte) value;
+		return pos + 2;
+	}
+
+	private static int getShort(byte[] buf, int pos) {
+		return (buf[pos] & 0xFF) << 8 | buf[pos + 1] & 0xFF;
+	}
+
+	private static int putString(byte[] buf, int pos, byte[] string) {
+		System.arraycopy(string, 0, buf, pos, string.length);
+		buf[pos + string.length] = 0;
+		return pos + string.length + 1;
+	}
+
+	private static int putData(byte[] buf, int pos, ByteString data) {
+		data.copyTo(buf, pos);
+		return pos + data.size();
+	}
+
+	private static int findZero(byte[] buf, int from, int length) throws InvalidProtocolBufferException {
+		for (int i = from; i < length; i++) {
+			if (buf[i] == 0)
+				return i;
+		}
+		throw new InvalidProtocolBufferException("Missing string terminator");
+	}
+
+	private static void checkLength(int length, int min) throws InvalidProtocolBufferException {
+		if (length < min)
+			throw new InvalidProtocolBufferException("Packet too short");
+	}
+
+	private static byte[] utf8(String string) {
+		return string.getBytes(StandardCharsets.UTF_8);
+	}
+}
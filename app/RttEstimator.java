@@ -0,0 +1,106 @@
+package app;
+
+/*
+ * Retransmission timeout of a transfer, following the round trip time of its
+ * path (RFC 6298). Smoothed RTT and its variation are updated from one timed
+ * packet at a time. A packet sent more than once is not timed, its reply
+ * could belong to any of the copies (Karn's rule). Each timeout doubles the
+ * timeout until a new sample comes in.
+ */
+public class RttEstimator {
+	static final int INITIAL_RTO = 100; // ms, before any sample
+	static final int MIN_RTO = 10;
+	static final int MAX_RTO = 5000;
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final double GRANULARITY = 1; // ms, timers are in ms
+
+	private double srtt, rttvar;
+	private boolean hasSample = false;
+	private int rto = INITIAL_RTO;
+
+	private int timedBlock = -1; // -1 when nothing is timed
+	private long timedSince;
+	private TransferMetrics metrics; // Samples recorded there, null if not
+
+	/*
+	 * Record the samples to come in <metrics>.
+	 */
+	public void record(TransferMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/*
+	 * Packet expecting a reply covering <block> was sent for the first time.
+	 * Timed if nothing else is.
+	 */
+	public void sent(int block) {
+		if (timedBlock == -1) {
+			timedBlock = block;
+			timedSince = System.nanoTime();
+		}
+	}
+
+	/*
+	 * A packet was sent again. Karn's rule, the timed packet may have been
+	 * resent so the next reply is not a sample.
+	 */
+	public void resent() {
+		timedBlock = -1;
+	}
+
+	/*
+	 * Reply covering up to <block> received.
+	 */
+	public void acked(int block) {
+		if (timedBlock != -1 && block >= timedBlock) {
+			sample((System.nanoTime() - timedSince) / 1e6);
+			timedBlock = -1;
+		}
+	}
+
+	public void sample(double rtt) {
+		if (metrics != null)
+			metrics.rtt(rtt);
+		if (!hasSample) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+			hasSample = true;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+		}
+		rto = clamp((int) Math.ceil(srtt + Math.max(GRANULARITY, 4 * rttvar)));
+	}
+
+	/*
+	 * No reply before the timeout. Back off until the next sample.
+	 */
+	public void backoff() {
+		timedBlock = -1;
+		rto = clamp(rto * 2);
+	}
+
+	/*
+	 * Time to wait for a reply, in ms.
+	 */
+	public int timeout() {
+		return rto;
+	}
+
+	/*
+	 * Time the receiver waits, twice as long as the sender would so that
+	 * lost packets are resent by the sender first.
+	 */
+	public int receiveTimeout() {
+		return 2 * rto;
+	}
+
+	public double getSmoothedRtt() {
+		return srtt;
+	}
+
+	private static int clamp(int timeout) {
+		return Math.max(MIN_RTO, Math.min(timeout, MAX_RTO));
+	}
+}
@@ -0,0 +1,49 @@
+package app;
+
+import java.util.BitSet;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * Blocks received past the acked one, carried in the data field of an ack
+ * when the sack option is accepted. Bit i (least significant bit first) is
+ * set when block <ack> + 1 + i was received, so clear bits below the highest
+ * set one are the blocks missing at the receiver. An ack #0 never carries
+ * one, it would read as an option ack.
+ */
+public class SelectiveAck {
+
+	public static ByteString encode(BitSet received) {
+		return ByteString.copyFrom(received.toByteArray());
+	}
+
+	public static BitSet parse(ByteString data) {
+		return BitSet.valueOf(data.asReadOnlyByteBuffer());
+	}
+
+	/*
+	 * Sender side. Blocks of <received> that count, the ones sent, up to
+	 * <sent>, and in the window of <windowSize> after <acked>, whatever the
+	 * bitmap tells.
+	 */
+	public static BitSet bound(BitSet received, int acked, int sent, int windowSize) {
+		return received.get(0, Math.max(0, Math.min(sent, acked + windowSize) - acked));
+	}
+
+	/*
+	 * Sender side. Blocks missing at the receiver among the ones sent up to
+	 * <sent>, in <received> bounded. Missing only when DUPLICATE_ACKS blocks
+	 * sent after it got through, or all of them did, a block merely reordered
+	 * is not. Bit i for block <acked> + 1 + i, same as <received>.
+	 */
+	public static BitSet missing(BitSet received, int acked, int sent) {
+		BitSet missing = new BitSet();
+		int end = received.length();
+		for (int bit = received.nextClearBit(0); bit < end; bit = received.nextClearBit(bit + 1)) {
+			int after = received.get(bit + 1, end).cardinality();
+			if (after >= TFTP.DUPLICATE_ACKS || after == sent - acked - 1 - bit)
+				missing.set(bit);
+		}
+		return missing;
+	}
+}
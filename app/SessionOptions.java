@@ -0,0 +1,135 @@
+package app;
+
+/*
+ * Options of a transfer (RFC 2347), negotiated by the same rules whichever
+ * engine runs it. The server picks them among the ones requested by the
+ * client and sends back the ones accepted, the client checks and uses these.
+ * Sizes are left to TransferSize, groups to the engines.
+ */
+public class SessionOptions {
+	private final int windowSize;
+	private final int blockSize;
+	private final boolean ackEvery;
+	private final boolean selectiveAck;
+	private final boolean rollover;
+	private final TransferOptions accepted; // Sent back by the server
+
+	private SessionOptions(int windowSize, int blockSize, boolean ackEvery, boolean selectiveAck, boolean rollover,
+			TransferOptions accepted) {
+		this.windowSize = windowSize;
+		this.blockSize = blockSize;
+		this.ackEvery = ackEvery;
+		this.selectiveAck = selectiveAck;
+		this.rollover = rollover;
+		this.accepted = accepted;
+	}
+
+	/*
+	 * Server side. Options to use among the ones <requested>, <blockSize>
+	 * blocks if none is asked.
+	 */
+	public static SessionOptions negotiate(TransferOptions requested, int blockSize) {
+		TransferOptions accepted = new TransferOptions();
+		int windowSize = 1;
+		if (requested.has(TransferOptions.WINDOW_SIZE)) {
+			windowSize = Math.max(1, Math.min(requested.getInt(TransferOptions.WINDOW_SIZE, 1), TFTP.MAX_WINDOW_SIZE));
+			accepted.put(TransferOptions.WINDOW_SIZE, windowSize);
+		}
+		// Block sizes below the minimum are declined, default is kept
+		if (requested.getInt(TransferOptions.BLOCK_SIZE, 0) >= TFTP.MIN_BLOCK_SIZE) {
+			blockSize = Math.min(requested.getInt(TransferOptions.BLOCK_SIZE, 0), TFTP.MAX_BLOCK_SIZE);
+			accepted.put(TransferOptions.BLOCK_SIZE, blockSize);
+		}
+		boolean ackEvery = requested.has(TransferOptions.ACK_EVERY);
+		if (ackEvery)
+			accepted.put(TransferOptions.ACK_EVERY, 1);
+		boolean selectiveAck = requested.has(TransferOptions.SACK);
+		if (selectiveAck)
+			accepted.put(TransferOptions.SACK, 1);
+		// Rolled over to 0, the other value (to 1) is declined
+		boolean rollover = requested.getInt(TransferOptions.ROLLOVER, -1) == 0;
+		if (rollover)
+			accepted.put(TransferOptions.ROLLOVER, 0);
+		return new SessionOptions(windowSize, blockSize, ackEvery, selectiveAck, rollover, accepted);
+	}
+
+	/*
+	 * Client side. Why the options <accepted> by the server cannot be used.
+	 * Null if they can.
+	 */
+	public static String refuse(TransferOptions accepted) {
+		int size = accepted.getInt(TransferOptions.WINDOW_SIZE, 1);
+		if (size < 1 || size > TFTP.MAX_WINDOW_SIZE)
+			return "invalid window size " + size;
+		size = accepted.getInt(TransferOptions.BLOCK_SIZE, TFTP.MIN_BLOCK_SIZE);
+		if (size < TFTP.MIN_BLOCK_SIZE || size > TFTP.BLOCK_SIZE)
+			return "invalid block size " + size;
+		return null;
+	}
+
+	/*
+	 * Client side. Options to use, the ones <accepted> by the server and not
+	 * refused, <blockSize> blocks if none was accepted.
+	 */
+	public static SessionOptions accept(TransferOptions accepted, int blockSize) {
+		return new SessionOptions(accepted.getInt(TransferOptions.WINDOW_SIZE, 1),
+				accepted.getInt(TransferOptions.BLOCK_SIZE, blockSize), accepted.has(TransferOptions.ACK_EVERY),
+				accepted.has(TransferOptions.SACK), accepted.getInt(TransferOptions.ROLLOVER, -1) == 0, accepted);
+	}
+
+	/*
+	 * Server side. Range asked in <value>, of a file of <fileSize> bytes.
+	 * When <receiving>, <fileSize> is the size of the partial file a put
+	 * resumes from, the range may go past it. Null if it is not a range of
+	 * the file.
+	 */
+	public static ByteRange requestedRange(String value, long fileSize, int blockSize, boolean receiving) {
+		if (!receiving)
+			return ByteRange.parse(value, fileSize, blockSize);
+		return value.equals(ByteRange.RESUME) ? new ByteRange(fileSize, -1) : ByteRange.parse(value, -1, blockSize);
+	}
+
+	/*
+	 * Client side. Range the server answered the one asked with, null if
+	 * none.
+	 */
+	public static ByteRange acceptedRange(TransferOptions accepted, int blockSize) {
+		if (!accepted.has(TransferOptions.RANGE))
+			return null;
+		return ByteRange.parse(accepted.get(TransferOptions.RANGE), -1, blockSize);
+	}
+
+	/*
+	 * Receiver side. Whether the file is received up to its end, whole or
+	 * from an offset, rather than a slice inside it. A client asking
+	 * "<offset>-" (<requested>) is answered with the length left, still up
+	 * to the end.
+	 */
+	public static boolean toEnd(ByteRange range, String requested) {
+		return range == null || range.getLength() == -1 || requested != null && requested.endsWith("-");
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public boolean isAckEvery() {
+		return ackEvery;
+	}
+
+	public boolean isSelectiveAck() {
+		return selectiveAck;
+	}
+
+	public boolean isRollover() {
+		return rollover;
+	}
+
+	public TransferOptions getAccepted() {
+		return accepted;
+	}
+}
@@ -0,0 +1,79 @@
+package app;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Sender side. A file sent by several transfers at once, boot storms asking
+ * for the same image, is mapped once and read ahead once for all of them.
+ * Each transfer slices its blocks from the shared map at its own pace, the
+ * read ahead loads every chunk once whichever transfer gets there first.
+ * Transfers attach to the file sent by others if it did not change since,
+ * the last one to detach lets the map go.
+ */
+public class SharedFile {
+	private static final Map<Path, SharedFile> files = new HashMap<>(); // Sent
+																		// now
+
+	private final Path path;
+	private final long modified, length;
+	private final MappedByteBuffer map;
+	private final ReadAhead readAhead;
+	private int senders = 0;
+
+	private SharedFile(Path path, long modified, long length, MappedByteBuffer map) {
+		this.path = path;
+		this.modified = modified;
+		this.length = length;
+		this.map = map;
+		this.readAhead = new ReadAhead(map, path.toString(), 0);
+	}
+
+	/*
+	 * The file at <path>, opened as <file>, mapped by the first transfer
+	 * sending it. Null if it is too large to be mapped whole.
+	 */
+	public static SharedFile attach(Path path, FileChannel file) throws IOException {
+		path = path.toAbsolutePath().normalize();
+		long modified = Files.getLastModifiedTime(path).toMillis(), length = file.size();
+		if (length > Integer.MAX_VALUE)
+			return null;
+		synchronized (files) {
+			SharedFile shared = files.get(path);
+			if (shared == null || shared.modified != modified || shared.length != length) {
+				// Changed since, transfers already sending it keep the old map
+				shared = new SharedFile(path, modified, length,
+						file.map(FileChannel.MapMode.READ_ONLY, 0, length));
+				files.put(path, shared);
+			}
+			shared.senders++;
+			return shared;
+		}
+	}
+
+	public void detach() {
+		synchronized (files) {
+			if (--senders == 0 && files.get(path) == this)
+				files.remove(path);
+		}
+	}
+
+	/*
+	 * Blocks are slices of it, positions are from the start of the file.
+	 */
+	public MappedByteBuffer getMap() {
+		return map;
+	}
+
+	/*
+	 * A transfer is about to read at <position>.
+	 */
+	public void reached(int position) {
+		readAhead.reached(position);
+	}
+}
@@ -0,0 +1,132 @@
+package app;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+ * Client side. One get or put split into ranges of the file moved in
+ * parallel, each by its own transfer on its own port, and written at their
+ * place in the same file. A get asks for the i-th of n parts since only the
+ * server knows the size of the file, a put sends byte ranges. The transfer
+ * fails if any stripe does.
+ */
+public class StripedTransfer {
+	private final Supplier<CommInterface> transfers;
+	private final String address;
+	private final int port;
+	private final int stripes;
+
+	public StripedTransfer(Supplier<CommInterface> transfers, String address, int port, int stripes) {
+		this.transfers = transfers;
+		this.address = address;
+		this.port = port;
+		this.stripes = stripes;
+	}
+
+	public void get(String fileName, String filePath) {
+		// Stripes write side by side, empty the file once for all of them
+		try {
+			FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING).close();
+		} catch (IOException e) {
+			System.out.println("File was not found: " + e);
+			return;
+		}
+		long start = System.nanoTime();
+		if (run(i -> "get," + fileName + "," + i + "/" + stripes, filePath, false))
+			printThroughput(Paths.get(filePath).toFile().length(), start);
+	}
+
+	public void put(String fileName, String filePath) {
+		long size;
+		try {
+			size = Files.size(Paths.get(filePath));
+		} catch (IOException e) {
+			System.out.println("File was not found: " + e);
+			return;
+		}
+		long start = System.nanoTime();
+		if (run(i -> "put," + fileName + "," + ByteRange.stripe(i, stripes, size, TFTP.BLOCK_SIZE), filePath, true))
+			printThroughput(size, start);
+	}
+
+	private interface Command {
+		public String of(int stripe);
+	}
+
+	/*
+	 * Told how the stripes go, passed on to the console. Counts the stripes
+	 * that completed.
+	 */
+	private static class Stripes implements TransferListener {
+		private final TransferListener console = ConsoleReporter.getDefault();
+		private final AtomicInteger completed = new AtomicInteger();
+
+		@Override
+		public void started(long id, String name) {
+			console.started(id, name);
+		}
+
+		@Override
+		public void progress(long id, long bytes, long total) {
+			console.progress(id, bytes, total);
+		}
+
+		@Override
+		public void retry(long id, int block) {
+			console.retry(id, block);
+		}
+
+		@Override
+		public void completed(long id, long bytes, int retries) {
+			completed.incrementAndGet();
+			console.completed(id, bytes, retries);
+		}
+
+		@Override
+		public void error(long id, String message) {
+			console.error(id, message);
+		}
+	}
+
+	/*
+	 * One transfer per stripe, all at once. Returns when all are done, false
+	 * if any of them failed.
+	 */
+	private boolean run(Command command, String filePath, boolean send) {
+		Stripes listener = new Stripes();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < stripes; i++) {
+				String stripeCommand = command.of(i);
+				executor.execute(() -> {
+					CommInterface transfer = transfers.get();
+					transfer.setListener(listener);
+					transfer.initializeClient(address, port);
+					transfer.sendCommand(stripeCommand);
+					if (send)
+						transfer.sendFile(filePath);
+					else
+						transfer.receiveFile(filePath);
+					transfer.closeConnection();
+				});
+			}
+		}
+		int failed = stripes - listener.completed.get();
+		if (failed > 0)
+			System.out.println("Error: " + failed + " of " + stripes + " stripes failed");
+		return failed == 0;
+	}
+
+	private void printThroughput(long bytes, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%.3f KB in %d stripes, %.0f ms, %.1f MB/s\n", bytes / 1000.0, stripes, seconds * 1000,
+				bytes / 1e6 / seconds);
+	}
+}
@@ -1,56 +1,144 @@
 package app;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 
 import app.CommInterface;
 import app.Messages.Message;
 
 public class TFTP implements CommInterface {
 
-	private static final int MAX_DATA_SIZE = 1000;
-	private static final int MAX_PACKET_SIZE = 1200; // Depends on Protobuf
-														// implementation. Not
-														// exactly 1024 + 4
-	private int TIMEOUT_SEND = 50;
-	private int TIMEOUT_RECEIVE = 100;
+	static final int MIN_BLOCK_SIZE = 512;
+	static final int MAX_BLOCK_SIZE = 65464; // RFC 2348
+	static final int BLOCK_SIZE = 8192; // Block size requested by client
+	static final int MAX_DATAGRAM_SIZE = 65507;
+	static final int MAX_WINDOW_SIZE = 16; // Blocks in flight requested by
+											// client and accepted by server
+											// (RFC 7440)
+	static final int MAX_TIMEOUTS = 10; // In a row before giving up. Both
+										// ends back off, the receiver
+										// waiting twice as long outlasts
+										// the sender.
+	static final int DUPLICATE_ACKS = 3; // Same ack repeated, the block after
+											// it was lost
+	static final int GROUP_TIMEOUT = 1000; // ms without blocks from the
+											// group before getting the rest
+											// by unicast
+	static final int MAX_FILL_RANGES = 16; // Unicast requests for blocks
+											// missed from the group, the
+											// last one up to the end
+	static final int DALLY_TIMEOUTS = 2; // Quiet timeouts after the last
+											// ack, covers two resends of
+											// the sender
 
 	private static final boolean PRINT_TRAFIC = false; // When true will print
 														// trafic on both side
 														// in console
-	private static final int PRINT_COMPLETION = 2; // 0: no print;
-													// 1: print percentages;
-													// 2: print ratio.
-													// 3: print number of resent
-													// packets
 
+	private PacketCodec codec;
 	private DatagramSocket socket;
 	private InetAddress destAddress;
 	private int srcPort, destPort = -1;
+	private int requestPort = -1; // Server listening port, requests are sent
+									// there and replies come from the transfer
+									// ID (port) of the server session
+
+	private byte[] receiveBuffer; // From the buffer pool, reused by every
+									// receive of the transfer
+	private DatagramPacket receivePacket;
+	private byte[] sendBuffer;
+	private DatagramPacket sendPacket;
+
+	private Set<String> activeSessions = ConcurrentHashMap.newKeySet();
+	private String sessionKey;
 
 	private Message lastMessageSent;
 	private Message currentMessageReceived;
 	private Message lastMessageReceived;
 
 	private int blockNumber = 0;
+	private int windowSize = 1;
+	private boolean ackEvery = false; // Receiver acks every block, sender
+										// runs congestion control
+	private boolean selectiveAck = false; // Receiver holds blocks past a
+											// missing one, acks tell which
+	private boolean rollover = false; // Block numbers go past the highest
+										// the codec carries
+	private CongestionControl.Factory congestionControl;
+	private FileCache fileCache; // Server side, null if files are not cached
+	private MulticastGroups multicast; // Server side, null if multicast is
+										// declined
+	private MulticastGroups.Group group; // Server side, group of the master
+											// client
+	private MulticastSocket groupSocket; // Client side, group blocks are
+											// received from
+	private boolean multicastMaster; // Client side, acks the group blocks
+	private int groupSource = -1; // Client side, port the group blocks come
+									// from, -1 if not told
+	private int blockSize;
+	private TransferOptions requestOptions;
+	private Message pendingRequest; // Client side, WRQ sent once the size of
+									// the file is known
+	private String requestedRange; // Client side, range option asked, null
+									// for the whole file
+	private ByteRange range; // Part of the file transferred, null for all of
+								// it
+	private RttEstimator rtt = new RttEstimator(); // Timeouts of the transfer
+	private TransferMetrics metrics; // Of the transfer, seen by JMX
+	private TransferListener listener = ConsoleReporter.getDefault();
+	private String failure; // Of the transfer, null unless it failed
 
 	private int numOfRetry = 0;
 
+	public TFTP() {
+		this(new ProtobufCodec());
+	}
+
+	public TFTP(PacketCodec codec) {
+		this(codec, AimdCongestionControl::new);
+	}
+
+	public TFTP(PacketCodec codec, CongestionControl.Factory congestionControl) {
+		this(codec, congestionControl, null);
+	}
+
+	public TFTP(PacketCodec codec, CongestionControl.Factory congestionControl, FileCache fileCache) {
+		this(codec, congestionControl, fileCache, null);
+	}
+
+	public TFTP(PacketCodec codec, CongestionControl.Factory congestionControl, FileCache fileCache,
+			MulticastGroups multicast) {
+		this.codec = codec;
+		this.congestionControl = congestionControl;
+		this.fileCache = fileCache;
+		this.multicast = multicast;
+		blockSize = codec.defaultBlockSize();
+	}
+
 	@Override
 	public void initializeServer(int sourcePort) {
 		srcPort = sourcePort;
@@ -63,7 +151,7 @@ public class TFTP implements CommInterface {
 
 	@Override
 	public void initializeClient(String address, int destinationPort) {
-		destPort = destinationPort;
+		requestPort = destinationPort;
 		try {
 			socket = new DatagramSocket();
 			destAddress = InetAddress.getByName(address);
@@ -74,18 +162,27 @@ public class TFTP implements CommInterface {
 
 	@Override
 	public void sendCommand(String command) {
-		// Initialize for new transfer
+		// Initialize for new transfer. Server replies from a new port.
 		blockNumber = 0;
+		windowSize = 1;
+		ackEvery = selectiveAck = rollover = false;
+		blockSize = codec.defaultBlockSize();
+		range = null;
+		leaveGroup();
+		pendingRequest = null;
+		rtt = new RttEstimator();
+		destPort = -1;
 		lastMessageSent = null;
 		currentMessageReceived = null;
 		lastMessageReceived = null;
 
 		// Parse the command
 		String[] tokens = parseCommand(command);
-		if (tokens.length > 2) {
+		if (tokens.length > 3) {
 			System.out.println("Error: too many arguments in command");
 			return;
 		}
+		requestedRange = tokens.length > 2 ? tokens[2] : null;
 
 		// Get data from command
 		Message.RequestType requestType = null;
@@ -96,10 +193,12 @@ public class TFTP implements CommInterface {
 			requestType = Message.RequestType.WRQ;
 			break;
 		case "get":
+		case "mget":
 			requestType = Message.RequestType.RRQ;
 			break;
 		case "quit":
 			closeConnection();
+			System.exit(0);
 			break;
 		default:
 			System.out.println("Error: Command not recognized");
@@ -107,19 +206,37 @@ public class TFTP implements CommInterface {
 		}
 		fileName = tokens[1];
 
-		// Create message
-		Message message = Message.newBuilder().setOpCode(requestType).setFileName(fileName).build();
+		// Create message, requesting options
+		TransferOptions options = new TransferOptions().put(TransferOptions.WINDOW_SIZE, MAX_WINDOW_SIZE)
+				.put(TransferOptions.BLOCK_SIZE, BLOCK_SIZE).put(TransferOptions.ACK_EVERY, 1)
+				.put(TransferOptions.SACK, 1).put(TransferOptions.ROLLOVER, 0);
+		if (requestedRange != null)
+			options.put(TransferOptions.RANGE, requestedRange);
+		if (tokens[0].equals("mget"))
+			options.put(TransferOptions.MULTICAST, 1);
+		if (requestType == Message.RequestType.RRQ)
+			options.put(TransferOptions.TSIZE, 0);
+		Message message = Message.newBuilder().setOpCode(requestType).setFileName(fileName)
+				.setData(options.toByteString()).build();
+		if (requestType == Message.RequestType.WRQ) {
+			// Sent with the size of the file, once it is opened
+			pendingRequest = message;
+			return;
+		}
 
-		// Send message
+		// Send message, first reply times it
 		if (!sendMessage(message))
 			return;
+		rtt.sent(0);
 	}
 
 	@Override
 	public String getCommand() {
 		// Initialize for new transfer
 		blockNumber = 0;
-		destPort = -1;
+		windowSize = 1;
+		ackEvery = selectiveAck = rollover = false;
+		blockSize = codec.defaultBlockSize();
 		lastMessageSent = null;
 		currentMessageReceived = null;
 		lastMessageReceived = null;
@@ -129,7 +246,9 @@ public class TFTP implements CommInterface {
 			Message.RequestType opCode;
 			String requestTypeString;
 			while (true) {
-				// Receive a message with timeout of 0
+				// Receive a message with timeout of 0, from any client
+				destAddress = null;
+				destPort = -1;
 				message = receiveMessage(0);
 
 				// Make sure it is a request
@@ -143,7 +262,8 @@ public class TFTP implements CommInterface {
 				}
 			}
 
-			// return command
+			// Keep requested options for the transfer, return command
+			requestOptions = TransferOptions.parse(message.getData());
 			String fileName = message.getFileName();
 			return requestTypeString + "," + fileName;
 
@@ -155,114 +275,351 @@ public class TFTP implements CommInterface {
 
 	@Override
 	public void sendFile(String filePath) {
-		try (FileInputStream file = new FileInputStream(filePath);) {
+		SharedFile shared = null;
+		boolean done = false;
+		track("send " + filePath);
+		try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);) {
+			if (pendingRequest != null) {
+				// Client side, the server can refuse the file before any
+				// data
+				TransferOptions options = TransferOptions.parse(pendingRequest.getData())
+						.put(TransferOptions.TSIZE, file.size());
+				Message request = pendingRequest.toBuilder().setData(options.toByteString()).build();
+				pendingRequest = null;
+				if (!sendMessage(request))
+					return;
+				rtt.sent(0);
+			}
 			// If you sent no message, server side
 			if (lastMessageSent == null) {
-				// Go to normal data/ack sequence
-			} else if (lastMessageSent.getOpCode() == Message.RequestType.WRQ) {
+				// Acknowledge requested options before sending data
+				TransferOptions options = negotiate(requestOptions);
+				if (!negotiateRange(options, file.size(), false))
+					return;
+				if (requestOptions.has(TransferOptions.TSIZE))
+					options.put(TransferOptions.TSIZE, file.size());
+				boolean member = !negotiateMulticast(options, filePath, file.size());
+				metrics.negotiated(requestOptions, options);
+				if (!options.isEmpty()) {
+					Message message = Message.newBuilder().setOpCode(Message.RequestType.ACK)
+							.setBlockNum(blockNumber).setData(options.toByteString()).build();
+					if (!sendMessage(message))
+						return;
+					rtt.sent(0);
+				}
+				// Blocks go to the group and are acked by the master client,
+				// the other clients are done with the option ack
+				if (member) {
+					done = true;
+					return;
+				}
+			}
+			if (lastMessageSent != null && (lastMessageSent.getOpCode() == Message.RequestType.WRQ
+					|| TransferOptions.isOptionAck(lastMessageSent))) {
 				// Wait for ack before sending data
 				for (int i = 0; i <= 5; i++) {
 					if (i == 5) {
 						sendError("Ack never received");
 						return;
 					}
-					Message message = receiveMessage((int) (TIMEOUT_SEND * Math.pow(2, i)));
+					Message message = receiveMessage(rtt.timeout());
 					if (message == null || message.getOpCode() != Message.RequestType.ACK
 							|| message.getBlockNum() != blockNumber) {
+						if (message == null)
+							metrics.timeout(blockNumber);
+						rtt.backoff();
 						if (!sendMessage(lastMessageSent))
 							return;
-						numOfRetry++;
+						retransmitted(blockNumber);
 					} else {
+						rtt.acked(0);
+						// Ack of a WRQ may carry the options accepted by the server
+						if (message.hasData() && !acceptOptions(TransferOptions.parse(message.getData())))
+							return;
 						break;
 					}
 				}
 			}
 
-			// Loop until transfer complete
-			int from = 0, to = 0, length = file.available();
-			boolean lastSent = false;
-			while (!lastSent) {
-				// Send data
-				from = to;
-				if (length - from >= MAX_DATA_SIZE) {
-					to = from + MAX_DATA_SIZE;
+			if (requestedRange != null && range == null) {
+				sendError("Error: range not accepted");
+				return;
+			}
+
+			// Blocks are slices of the file, or the range of it, so data is
+			// not copied before being serialized. Taken from the cache when
+			// the file is in it, from the map shared with the other
+			// transfers sending it otherwise. Past what one map holds, from
+			// a map of the part being sent.
+			long offset = range != null ? range.getOffset() : 0;
+			long length = range != null ? range.length(file.size()) : file.size();
+			if (length < 0 || offset + length > file.size()) {
+				sendError("Error: range outside the file");
+				return;
+			}
+			ByteBuffer content = null;
+			MappedSegments segments = null;
+			if (length > Integer.MAX_VALUE) {
+				segments = new MappedSegments(file, filePath, offset, length, blockSize);
+			} else {
+				content = fileCache != null ? fileCache.get(Paths.get(filePath), file.size()) : null;
+				if (content != null) {
+					content = content.slice((int) offset, (int) length);
 				} else {
-					to = length;
-					lastSent = true;
+					shared = SharedFile.attach(Paths.get(filePath), file);
+					content = shared != null ? shared.getMap().slice((int) offset, (int) length)
+							: file.map(FileChannel.MapMode.READ_ONLY, offset, length);
 				}
-				byte[] buf = new byte[to - from];
-				file.read(buf);
-				Message message = Message.newBuilder().setOpCode(Message.RequestType.DATA).setBlockNum(++blockNumber)
-						.setData(ByteString.copyFrom(buf)).build();
-				if (!sendMessage(message))
-					return;
+			}
 
-				// If receive no ack (timeout or RRQ packet again) resends data.
-				for (int i = 0; i <= 10; i++) {
-					if (i == 10) {
+			// Loop until transfer complete. Up to windowSize blocks are sent
+			// before waiting for an ack, fewer if the congestion window is
+			// smaller. Sent blocks are kept in case the window has to be
+			// resent, except the ones the receiver holds already.
+			if (length / blockSize + 1 > (rollover ? Integer.MAX_VALUE : codec.maxBlockNumber())) {
+				sendError("Error: file too large for block size " + blockSize);
+				return;
+			}
+			int lastBlock = (int) (length / blockSize + 1);
+			int ackedBlock = blockNumber, readBlock = blockNumber, timeouts = 0, duplicateAcks = 0, recover = 0;
+			Message[] window = new Message[windowSize];
+			boolean[] sacked = new boolean[windowSize], resent = new boolean[windowSize];
+			CongestionControl congestion = ackEvery ? congestionControl.create(windowSize)
+					: new FixedWindow(windowSize);
+			while (ackedBlock < lastBlock) {
+				// Send data until window is full
+				while (blockNumber < lastBlock && blockNumber - ackedBlock < congestion.window()) {
+					int slot = ++blockNumber % windowSize;
+					if (blockNumber > readBlock) {
+						long from = (long) (blockNumber - 1) * blockSize;
+						int size = (int) Math.min(blockSize, length - from);
+						if (shared != null)
+							shared.reached((int) (offset + from));
+						ByteString data = UnsafeByteOperations.unsafeWrap(
+								segments != null ? segments.slice(from, size) : content.slice((int) from, size));
+						window[slot] = Message.newBuilder().setOpCode(Message.RequestType.DATA)
+								.setBlockNum(blockNumber).setData(data).build();
+						readBlock = blockNumber;
+						sacked[slot] = resent[slot] = false;
+						rtt.sent(blockNumber);
+						metrics.sent(size);
+					} else if (sacked[slot]) {
+						continue;
+					} else {
+						retransmitted(blockNumber);
+						rtt.resent();
+					}
+					if (!sendData(window[slot]))
+						return;
+				}
+
+				// If receive no ack, back off and resend the window from the
+				// last ack.
+				Message message = receiveMessage(rtt.timeout());
+				if (message != null && message.getOpCode() == Message.RequestType.ACK
+						&& message.getBlockNum() <= ackedBlock)
+					metrics.duplicateAck();
+				if (message == null) {
+					metrics.timeout(ackedBlock);
+					if (++timeouts == MAX_TIMEOUTS) {
 						sendError("Ack never received");
 						return;
 					}
-					message = receiveMessage(TIMEOUT_SEND);
-					if (message == null || message.getOpCode() != Message.RequestType.ACK
-							|| message.getBlockNum() != blockNumber) {
-						// Making sure we don't get caught in storm
-						if (numOfRetry++ % 5 != 4) {
-							if (!sendMessage(lastMessageSent))
-								return;
-						}
-					} else {
-						break;
+					rtt.backoff();
+					congestion.onTimeout();
+					blockNumber = ackedBlock;
+					Arrays.fill(resent, false);
+				} else if (message.getOpCode() != Message.RequestType.ACK) {
+					// Not an ack, ignore
+				} else if (message.getBlockNum() > ackedBlock && message.getBlockNum() <= readBlock) {
+					// Ack is cumulative
+					timeouts = duplicateAcks = 0;
+					congestion.onAck(message.getBlockNum() - ackedBlock);
+					ackedBlock = message.getBlockNum();
+					blockNumber = Math.max(blockNumber, ackedBlock);
+					rtt.acked(ackedBlock);
+
+					// Receiver acking window ends only: short of the window,
+					// it missed a block. Restart the window after it.
+					if (!ackEvery && !selectiveAck && ackedBlock < blockNumber) {
+						congestion.onLoss();
+						blockNumber = ackedBlock;
 					}
+
+					listener.progress(metrics.getId(), Math.min((long) ackedBlock * blockSize, length), length);
+				} else if (ackEvery && !message.hasData() && message.getBlockNum() == ackedBlock
+						&& blockNumber > ackedBlock && ++duplicateAcks == DUPLICATE_ACKS) {
+					// Blocks after a missing one keep being acked with the
+					// same number, and no selective ack tells which ones got
+					// through (none held, or block 1 missing). Resend from the
+					// missing one.
+					congestion.onLoss();
+					blockNumber = ackedBlock;
 				}
 
-				// Print progression
-				printProgression(to, length);
+				// Resend the blocks missing at the receiver, once until the
+				// next timeout. One loss per window for congestion control.
+				if (selectiveAck && message != null && message.getOpCode() == Message.RequestType.ACK
+						&& message.getBlockNum() == ackedBlock && message.hasData()) {
+					BitSet received = SelectiveAck.bound(SelectiveAck.parse(message.getData()), ackedBlock,
+							readBlock, windowSize);
+					for (int bit = received.nextSetBit(0); bit != -1; bit = received.nextSetBit(bit + 1))
+						sacked[(ackedBlock + 1 + bit) % windowSize] = true;
+					BitSet missing = SelectiveAck.missing(received, ackedBlock, readBlock);
+					boolean lost = false;
+					for (int bit = missing.nextSetBit(0); bit != -1; bit = missing.nextSetBit(bit + 1)) {
+						int block = ackedBlock + 1 + bit, slot = block % windowSize;
+						if (resent[slot])
+							continue;
+						resent[slot] = lost = true;
+						retransmitted(block);
+						rtt.resent();
+						if (!sendData(window[slot]))
+							return;
+					}
+					if (lost && ackedBlock >= recover) {
+						congestion.onLoss();
+						recover = blockNumber;
+					}
+				}
 			}
-			System.out.println("# of resent packet: " + numOfRetry);
+			done = true;
 
 		} catch (ErrorPacketReceivedException e) {
 			System.out.println(e);
+			failure = e.getMessage();
 		} catch (IOException e) {
 			sendError("Error while reading file: " + e);
+		} finally {
+			if (shared != null)
+				shared.detach();
+			if (group != null)
+				multicast.leave(group);
+			group = null;
+			finish(done);
 		}
 	}
 
 	@Override
 	public void receiveFile(String filePath) {
-		try (FileOutputStream file = new FileOutputStream(filePath);) {
+		// Stripes of a file are written side by side, only a whole file
+		// replaces it
+		boolean ranged = lastMessageSent == null ? requestOptions.has(TransferOptions.RANGE) : requestedRange != null;
+		ReceiveWindow window = null;
+		TransferJournal journal = null;
+		boolean lastReceived = false, done = false;
+		long expected = -1; // Bytes told by the sender, if it did
+		track("receive " + filePath);
+		try (FileChannel file = ranged
+				? FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+				: FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+				WriteBehind writer = new WriteBehind(file, filePath);) {
 			// If no message sent, server side
 			if (lastMessageSent == null) {
-				// Send ack #0
-				Message message = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(blockNumber)
-						.build();
-				if (!sendMessage(message))
+				// Send ack #0, with the accepted options if any
+				Message.Builder ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(blockNumber);
+				TransferOptions options = negotiate(requestOptions);
+				if (!negotiateRange(options, TransferJournal.recover(filePath, file.size(),
+						requestOptions.getLong(TransferOptions.TSIZE, -1)), true))
+					return;
+				if (SessionOptions.toEnd(range, requestedRange)) {
+					// Journal the receive so that it can resume after a
+					// restart, from what is known to be on disk. Sized
+					// before the first block if the client told how much.
+					long offset = range != null ? range.getOffset() : 0;
+					long size = requestOptions.getLong(TransferOptions.TSIZE, -1);
+					if (requestOptions.has(TransferOptions.TSIZE) && !fits(file, filePath, size))
+						return;
+					file.truncate(offset);
+					journal = TransferJournal.open(filePath, blockSize, offset, size, range != null);
+					if (requestOptions.has(TransferOptions.TSIZE)) {
+						TransferSize.preallocate(file, size);
+						options.put(TransferOptions.TSIZE, size);
+						expected = size - offset;
+					}
+				} else if (requestOptions.has(TransferOptions.TSIZE)) {
+					// Stripe of a put, the file is the size of the one sent
+					long size = requestOptions.getLong(TransferOptions.TSIZE, -1);
+					if (!fits(file, filePath, size))
+						return;
+					TransferSize.resize(Paths.get(filePath), size);
+					options.put(TransferOptions.TSIZE, size);
+				}
+				metrics.negotiated(requestOptions, options);
+				if (!options.isEmpty())
+					ack.setData(options.toByteString());
+				if (!sendMessage(ack.build()))
 					return;
+				rtt.sent(1);
 			} else if (lastMessageSent.getOpCode() == Message.RequestType.RRQ) {
 				// Go to normal data/ack sequence
 			}
 
-			// Receive one packet at a time and send ack
+			// Receive packets and ack every window. Blocks are written at
+			// their place in the file as they come.
 			Message message = null;
-			int dataSize = MAX_DATA_SIZE;
+			int lastAcked = blockNumber, gapAcked = -1;
+			long lastAckTime = 0;
 
-			while (dataSize == MAX_DATA_SIZE) {
+			while (!lastReceived) {
 				// Receive message
-				for (int i = 0; i <= 5; i++) {
-					if (i == 5) {
+				for (int i = 0; i <= MAX_TIMEOUTS; i++) {
+					if (i == MAX_TIMEOUTS) {
 						sendError("Receiver timeout");
 						return;
 					}
-					message = receiveMessage(TIMEOUT_RECEIVE);
+					message = receiveMessage(rtt.receiveTimeout());
+					if (message == null) {
+						metrics.timeout(blockNumber);
+						rtt.backoff();
+					}
 					if (message == null && lastMessageSent.getOpCode() == Message.RequestType.RRQ) {
 						// If RRQ packet lost
 						if (!sendMessage(lastMessageSent))
 							return;
 					} else if (lastMessageSent.getBlockNum() == 0 && message != null && message.getOpCode() == Message.RequestType.WRQ) {
 						// If receive WRQ again, first ack never got through
+						rtt.resent();
+						if (!sendMessage(lastMessageSent))
+							return;
+						retransmitted(blockNumber);
+					} else if (blockNumber == 0 && message != null && TransferOptions.isOptionAck(message)) {
+						// Options accepted by the sender, ack them with ack #0
+						rtt.acked(0);
+						TransferOptions accepted = TransferOptions.parse(message.getData());
+						if (!acceptOptions(accepted))
+							return;
+						if (groupSocket != null && !multicastMaster) {
+							// Blocks come from the group, acked by another
+							// client
+							receiveGroup(writer, filePath);
+							done = true;
+							return;
+						}
+						if (accepted.has(TransferOptions.TSIZE) && journal == null
+								&& SessionOptions.toEnd(range, requestedRange)) {
+							// Sized before the first block, then its size
+							// does not tell how much was received: journaled
+							// like on the server
+							long offset = range != null ? range.getOffset() : 0;
+							long size = accepted.getLong(TransferOptions.TSIZE, -1);
+							if (!fits(file, filePath, size) || !sameFile(filePath, size))
+								return;
+							file.truncate(offset);
+							journal = TransferJournal.open(filePath, blockSize, offset, size, range != null);
+							TransferSize.preallocate(file, size);
+							expected = size - offset;
+						}
+						Message ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(0).build();
+						if (!sendMessage(ack))
+							return;
+						rtt.sent(1);
+					} else if (message == null && (windowSize > 1 || blockNumber == 0)) {
+						// Windowed transfer or first ack, repeat last ack so
+						// the sender restarts from there
 						if (!sendMessage(lastMessageSent))
 							return;
-						numOfRetry++;
 					} else if (message == null || message.getOpCode() != Message.RequestType.DATA) {
 						// Receiver never resends packets. Risk of packet storm!
 						// If sender does not receive ack, data will be resent
@@ -272,73 +629,469 @@ public class TFTP implements CommInterface {
 					}
 				}
 
-				// If received same data as last time, don't write to file.
-				if (lastMessageReceived != null && message.getBlockNum() == lastMessageReceived.getBlockNum()) {
+				boolean sendAck = false;
+				if (window == null) {
+					if (requestedRange != null && range == null) {
+						sendError("Error: range not accepted");
+						return;
+					}
+					window = new ReceiveWindow(writer, range != null ? range.getOffset() : 0, windowSize, blockSize);
+				}
+				if (message.getBlockNum() == blockNumber + 1) {
+					// Next block in sequence, then the ones written ahead of
+					// it. Ack at the end of a window, once it is queued for
+					// writing.
+					window.write(message.getBlockNum(), message.getData().asReadOnlyByteBuffer());
+					metrics.received(message.getData().size());
+					blockNumber = window.advance(message.getBlockNum());
+					lastReceived = message.getData().size() < blockSize || window.isLast(blockNumber);
+					if (lastReceived) {
+						// Written before the last ack
+						writer.flush();
+						if (journal != null)
+							journal.complete(file);
+					} else if (journal != null && journal.due(window.end(blockNumber))) {
+						writer.flush();
+						journal.checkpoint(file, window.end(blockNumber));
+					}
+					rtt.acked(blockNumber);
+					// Whole blocks so far, completed tells the end
+					if (!lastReceived)
+						listener.progress(metrics.getId(),
+								window.end(blockNumber) - (range != null ? range.getOffset() : 0),
+								range != null && range.getLength() != -1 ? range.getLength() : expected);
+					sendAck = lastReceived || ackEvery || blockNumber - lastAcked >= windowSize
+							|| selectiveAck && !window.isEmpty();
+				} else if (message.getBlockNum() > blockNumber) {
+					// Missed a block. Write this one ahead and ack last one
+					// in sequence: a selective ack tells the sender which
+					// blocks are missing, otherwise it restarts its window,
+					// once unless it counts duplicate acks.
+					if (window.writeAhead(message.getBlockNum(), blockNumber + 1,
+							message.getData().asReadOnlyByteBuffer()))
+						metrics.received(message.getData().size());
+					else
+						metrics.duplicateData();
+					sendAck = selectiveAck || ackEvery || gapAcked != blockNumber;
+					gapAcked = blockNumber;
+				} else {
+					// If received same data as last time, don't write to file.
+					// Ack again once per burst of resent blocks.
 					if (PRINT_TRAFIC)
 						System.out.println("Received same data");
-				} else {
-					dataSize = message.getData().size();
-					file.write(message.getData().toByteArray());
+					metrics.duplicateData();
+					sendAck = System.currentTimeMillis() - lastAckTime >= rtt.timeout() / 2;
 				}
 
-				// Send ack
-				Message ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(message.getBlockNum())
-						.build();
-				if (!sendMessage(ack))
-					return;
+				// Send ack. Only the first ack of a block is timed.
+				if (sendAck) {
+					Message.Builder ack = Message.newBuilder().setOpCode(Message.RequestType.ACK)
+							.setBlockNum(blockNumber);
+					if (selectiveAck && !window.isEmpty() && blockNumber > 0)
+						ack.setData(window.selectiveAck(blockNumber));
+					if (!sendMessage(ack.build()))
+						return;
+					if (blockNumber > lastAcked)
+						rtt.sent(blockNumber + 1);
+					else
+						rtt.resent();
+					lastAcked = blockNumber;
+					lastAckTime = System.currentTimeMillis();
+				}
 			}
 
-			// Making sure last sent ack received.
-			for (int i = 0; i <= 5; i++) {
-				if (i == 5) {
-					return;
-				}
-				message = receiveMessage(TIMEOUT_RECEIVE);
-				
+			// Making sure last sent ack received. Ack again data resent by
+			// the sender until it goes quiet.
+			int quiet = 0;
+			while (quiet < DALLY_TIMEOUTS) {
+				message = receiveMessage(rtt.receiveTimeout());
+
 				if (message == null || message.getOpCode() != Message.RequestType.DATA) {
 					// Receiver never resends packets. Risk of packet storm!
 					// If sender does not receive ack, data will be resent
 					// upon what receiver resends ack.
+					quiet++;
 				} else {
-					Message ack = Message.newBuilder().setOpCode(Message.RequestType.ACK).setBlockNum(message.getBlockNum())
-							.build();
-					if (!sendMessage(ack))
-						return;
-					break;
+					quiet = 0;
+					metrics.duplicateData();
+					if (System.currentTimeMillis() - lastAckTime >= rtt.timeout() / 2) {
+						Message ack = Message.newBuilder().setOpCode(Message.RequestType.ACK)
+								.setBlockNum(blockNumber).build();
+						if (!sendMessage(ack))
+							return;
+						lastAckTime = System.currentTimeMillis();
+					}
 				}
 			}
 
 		} catch (ErrorPacketReceivedException e) {
 			System.out.println(e);
+			failure = e.getMessage();
 		} catch (FileNotFoundException e) {
 			System.out.println("File was not found: " + e);
+			failure = e.toString();
 		} catch (IOException e) {
 			System.out.println("IOException: " + e);
+			failure = e.toString();
+		} finally {
+			// Unfinished, keep only the blocks received in sequence so that
+			// the transfer can resume from the end of the file
+			if ((window != null || journal != null) && !lastReceived && SessionOptions.toEnd(range, requestedRange))
+				truncate(filePath, window != null ? window.end(blockNumber) : range != null ? range.getOffset() : 0,
+						journal);
+			if (journal != null)
+				journal.close();
+			leaveGroup();
+			finish(done || lastReceived);
+		}
+	}
+
+	private static void truncate(String filePath, long size, TransferJournal journal) {
+		try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE);) {
+			file.truncate(size);
+			if (journal != null)
+				journal.checkpoint(file, size);
+		} catch (IOException e) {
+			System.out.println("Error while truncating file: " + e);
+		}
+	}
+
+	/*
+	 * A transfer called <name> starts, seen by JMX, recordings and the
+	 * listener.
+	 */
+	private void track(String name) {
+		metrics = TransferMetrics.start(name);
+		rtt.record(metrics);
+		failure = null;
+		numOfRetry = 0;
+		listener.started(metrics.getId(), name);
+	}
+
+	/*
+	 * The transfer ends, <done> if all of it was moved.
+	 */
+	private void finish(boolean done) {
+		if (done)
+			listener.completed(metrics.getId(), metrics.getBytes(), numOfRetry);
+		else
+			listener.error(metrics.getId(), failure != null ? failure : "Transfer interrupted");
+		metrics.finish();
+	}
+
+	/*
+	 * Packet sent again, <block> or the request or ack before it.
+	 */
+	private void retransmitted(int block) {
+		numOfRetry++;
+		metrics.retransmit(block);
+		listener.retry(metrics.getId(), block);
+	}
+
+	/*
+	 * Receiver side. Whether the <size> bytes of the file fit in <file>.
+	 * Sends an error and returns false if they do not.
+	 */
+	private boolean fits(FileChannel file, String filePath, long size) throws IOException {
+		String refused = TransferSize.refuse(Paths.get(filePath), file, size);
+		if (refused != null)
+			sendError("Error: " + refused);
+		return refused == null;
+	}
+
+	/*
+	 * Client side. Whether the file of <size> bytes a get resumes is the one
+	 * partly received. Sends an error and returns false if it is not.
+	 */
+	private boolean sameFile(String filePath, long size) {
+		String refused = range != null ? TransferJournal.refuse(filePath, size) : null;
+		if (refused != null)
+			sendError("Error: " + refused);
+		return refused == null;
+	}
+
+	/*
+	 * Server side. Use the options picked among the ones requested by the
+	 * client. Returns the accepted options, empty if none.
+	 */
+	private TransferOptions negotiate(TransferOptions requested) {
+		SessionOptions options = SessionOptions.negotiate(requested, blockSize);
+		use(options);
+		return options.getAccepted();
+	}
+
+	/*
+	 * Client side. Apply the options accepted by the server. Sends an error
+	 * and returns false if they are not acceptable.
+	 */
+	private boolean acceptOptions(TransferOptions accepted) {
+		metrics.negotiated(TransferOptions.parse(lastMessageSent.getData()), accepted);
+		String refused = SessionOptions.refuse(accepted);
+		if (refused != null) {
+			sendError("Error: " + refused);
+			return false;
 		}
+		use(SessionOptions.accept(accepted, blockSize));
+		if (accepted.has(TransferOptions.MULTICAST) && !joinGroup(accepted.get(TransferOptions.MULTICAST)))
+			return false;
+		if (requestedRange != null) {
+			range = SessionOptions.acceptedRange(accepted, blockSize);
+			if (range == null) {
+				sendError("Error: range not accepted");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void use(SessionOptions options) {
+		windowSize = options.getWindowSize();
+		blockSize = options.getBlockSize();
+		ackEvery = options.isAckEvery();
+		selectiveAck = options.isSelectiveAck();
+		rollover = options.isRollover();
+		sizeReceiveBuffer();
+	}
+
+	/*
+	 * Server side. Add the range of the file asked by the client to the
+	 * accepted options. When <receiving>, <fileSize> is the size of the
+	 * partial file a put resumes from, the range may go past it. Sends an
+	 * error and returns false if it is not a range of the file.
+	 */
+	private boolean negotiateRange(TransferOptions accepted, long fileSize, boolean receiving) {
+		if (!requestOptions.has(TransferOptions.RANGE))
+			return true;
+		String value = requestOptions.get(TransferOptions.RANGE);
+		range = SessionOptions.requestedRange(value, fileSize, blockSize, receiving);
+		if (range == null) {
+			sendError("Error: invalid range " + value);
+			return false;
+		}
+		accepted.put(TransferOptions.RANGE, range.toString());
+		return true;
+	}
+
+	/*
+	 * Server side. Add the group sending the file to the accepted options if
+	 * the client asked for multicast, started by this transfer if there is
+	 * none. Returns false if another transfer is the master of the group, the
+	 * client then gets the blocks from it. Declined for ranges, and for files
+	 * of <fileSize> whose block numbers would roll over: clients joining late
+	 * could not tell where the stream is.
+	 */
+	private boolean negotiateMulticast(TransferOptions accepted, String filePath, long fileSize) {
+		if (multicast == null || !requestOptions.has(TransferOptions.MULTICAST) || range != null
+				|| fileSize / blockSize + 1 > codec.maxBlockNumber())
+			return true;
+		MulticastGroups.Group joined = multicast.join(Paths.get(filePath), this, socket.getLocalPort(), blockSize);
+		if (joined == null)
+			return true;
+		boolean master = joined.isMaster(this);
+		if (master) {
+			group = joined;
+		} else {
+			// Blocks are the size the master client asked
+			blockSize = joined.getBlockSize();
+			accepted.put(TransferOptions.BLOCK_SIZE, blockSize);
+		}
+		accepted.put(TransferOptions.MULTICAST,
+				joined.getAddress().getHostAddress() + "," + joined.getPort() + "," + (master ? 1 : 0) + ","
+						+ joined.getSource());
+		return master;
+	}
+
+	/*
+	 * Client side. Listen to the group in <value> (<address>,<port>,<1 if
+	 * master client>,<port blocks are sent from>). Sends an error and returns
+	 * false if it cannot.
+	 */
+	private boolean joinGroup(String value) {
+		try {
+			String[] tokens = value.split(",");
+			InetAddress address = InetAddress.getByName(tokens[0]);
+			int port = Integer.parseInt(tokens[1]);
+			groupSocket = new MulticastSocket(port);
+			groupSocket.joinGroup(new InetSocketAddress(address, port), null);
+			groupSocket.setReceiveBufferSize(windowSize * codec.maxPacketSize(blockSize));
+			multicastMaster = tokens[2].equals("1");
+			groupSource = tokens.length > 3 ? Integer.parseInt(tokens[3]) : -1;
+		} catch (IOException | RuntimeException e) {
+			leaveGroup();
+			sendError("Error: cannot join multicast group " + value + ": " + e);
+			return false;
+		}
+		return true;
+	}
+
+	private void leaveGroup() {
+		if (groupSocket != null)
+			groupSocket.close();
+		groupSocket = null;
+		multicastMaster = false;
+		groupSource = -1;
+	}
+
+	/*
+	 * Client side, not the master client. Write the blocks sent to the group
+	 * from wherever the stream is, until the file is complete or the group
+	 * goes quiet. Then get the blocks missed by unicast, a range request at a
+	 * time. Nothing is sent to the group. Blocks of another transfer using the
+	 * same group are dropped.
+	 */
+	private void receiveGroup(WriteBehind writer, String filePath) throws IOException {
+		String fileName = lastMessageSent.getFileName(); // Of the request
+		byte[] buffer = BufferPool.getDefault().acquire(codec.maxPacketSize(blockSize));
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		BitSet received = new BitSet();
+		int last = -1; // Short block ending the file, once received
+		long quiet = System.currentTimeMillis() + GROUP_TIMEOUT; // Group gone quiet
+		try {
+			while (last == -1 || received.nextClearBit(1) <= last) {
+				long wait = quiet - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				packet.setLength(buffer.length);
+				try {
+					groupSocket.setSoTimeout((int) wait);
+					groupSocket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				if (groupSource != -1 && packet.getPort() != groupSource)
+					continue;
+				quiet = System.currentTimeMillis() + GROUP_TIMEOUT;
+				Message message;
+				try {
+					message = codec.decode(buffer, packet.getLength());
+				} catch (InvalidProtocolBufferException e) {
+					continue;
+				}
+				int block = message.getBlockNum();
+				if (message.getOpCode() != Message.RequestType.DATA || block < 1 || received.get(block))
+					continue;
+				writer.write((long) (block - 1) * blockSize, message.getData().asReadOnlyByteBuffer());
+				metrics.received(message.getData().size());
+				received.set(block);
+				if (message.getData().size() < blockSize)
+					last = block;
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+		writer.flush();
+		leaveGroup();
+
+		// Runs of missed blocks, the last one up to the end of the file if
+		// its end was not received
+		List<String> ranges = new ArrayList<>();
+		int block = received.nextClearBit(1);
+		while (last == -1 || block <= last) {
+			int next = received.nextSetBit(block);
+			if (next == -1 || ranges.size() == MAX_FILL_RANGES - 1) {
+				ranges.add((long) (block - 1) * blockSize + "-");
+				break;
+			}
+			ranges.add((long) (block - 1) * blockSize + "-" + (long) (next - block) * blockSize);
+			block = received.nextClearBit(next);
+		}
+		System.out.println(received.cardinality() + " blocks from the group, " + ranges.size() + " ranges by unicast");
+		for (String missed : ranges) {
+			TFTP fill = new TFTP(codec, congestionControl);
+			fill.listener = listener;
+			fill.initializeClient(destAddress.getHostAddress(), requestPort);
+			fill.sendCommand("get," + fileName + "," + missed);
+			fill.receiveFile(filePath);
+			fill.closeConnection();
+		}
+	}
+
+	/*
+	 * Make room in the socket for a full window of packets, otherwise large
+	 * blocks get dropped by the kernel before being read.
+	 */
+	private void sizeReceiveBuffer() {
+		try {
+			int size = windowSize * codec.maxPacketSize(blockSize);
+			if (socket.getReceiveBufferSize() < size)
+				socket.setReceiveBufferSize(size);
+		} catch (SocketException e) {
+			System.out.println("Error while sizing receive buffer: " + e);
+		}
+	}
+
+	/*
+	 * Server side. Create the session serving the last request received by
+	 * getCommand, with its own socket so that its port identifies the transfer
+	 * (RFC 1350 transfer ID). Returns null if that request is a retransmission
+	 * for a session still running.
+	 */
+	@Override
+	public CommInterface newSession() {
+		String key = destAddress.getHostAddress() + ":" + destPort + "," + currentMessageReceived.getOpCode() + ","
+				+ currentMessageReceived.getFileName();
+		if (!activeSessions.add(key))
+			return null;
+
+		TFTP session = new TFTP(codec, congestionControl, fileCache, multicast);
+		try {
+			session.socket = new DatagramSocket();
+		} catch (SocketException e) {
+			activeSessions.remove(key);
+			System.out.println("Error initializing session: " + e);
+			return null;
+		}
+		session.destAddress = destAddress;
+		session.destPort = destPort;
+		session.requestOptions = requestOptions;
+		session.activeSessions = activeSessions;
+		session.sessionKey = key;
+		session.listener = listener;
+		TransferEvents.requestAccepted(destAddress.getHostAddress() + ":" + destPort, currentMessageReceived,
+				requestOptions);
+		return session;
+	}
+
+	@Override
+	public boolean hasBlockingSessions() {
+		return true;
 	}
 
 	@Override
 	public void error(String e) {
-		// TODO Auto-generated method stub
+		sendError(e);
+	}
 
+	@Override
+	public void setListener(TransferListener listener) {
+		this.listener = listener;
 	}
 
 	@Override
 	public void closeConnection() {
-		System.exit(0);
+		if (socket != null)
+			socket.close();
+		BufferPool.getDefault().release(receiveBuffer);
+		BufferPool.getDefault().release(sendBuffer);
+		receiveBuffer = sendBuffer = null;
+		receivePacket = sendPacket = null;
+		if (sessionKey != null)
+			activeSessions.remove(sessionKey);
 	}
 
 	private boolean sendMessage(Message message) {
-		// To byte array and check length
-		byte[] messageByte = message.toByteArray();
-		if (messageByte.length > MAX_PACKET_SIZE) {
+		// Check length
+		int size = codec.encodedSize(message);
+		if (size > codec.maxPacketSize(blockSize)) {
 			System.out.println(message.getBlockNum());
-			sendError("Error: packet too large of size " + messageByte.length + " bytes");
+			sendError("Error: packet too large of size " + size + " bytes");
 			return false;
 		}
 
-		// Send message
-		DatagramPacket packet = new DatagramPacket(messageByte, messageByte.length, destAddress, destPort);
+		// Send message. Until the server session replies, send to its
+		// listening port.
+		int port = destPort == -1 ? requestPort : destPort;
+		DatagramPacket packet = encode(message, size, destAddress, port);
 		try {
 			socket.send(packet);
 			if (PRINT_TRAFIC)
@@ -351,48 +1104,98 @@ public class TFTP implements CommInterface {
 		return true;
 	}
 
+	/*
+	 * Server side, data of the master client goes to its group.
+	 */
+	private boolean sendData(Message message) {
+		if (group == null)
+			return sendMessage(message);
+		DatagramPacket packet = encode(message, codec.encodedSize(message), group.getAddress(), group.getPort());
+		try {
+			socket.send(packet);
+			lastMessageSent = message;
+		} catch (IOException e) {
+			sendError("Error while sending to group: " + e);
+			return false;
+		}
+		return true;
+	}
+
 	/*
 	 * Receive message. Also check if error was received. If internal error
 	 * occurs, sends error packet. Return null in all cases where connection
-	 * should terminate
+	 * should terminate. The data of the message returned is only valid until the
+	 * next call.
 	 */
 	private Message receiveMessage(int timeout) throws ErrorPacketReceivedException {
-		// Receive packet with timeout of <timeout>ms
-		byte[] buf = new byte[MAX_PACKET_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
-		try {
-			socket.setSoTimeout(timeout);
-			socket.receive(packet);
-			socket.setSoTimeout(0);
-		} catch (SocketTimeoutException e) {
-			return null;
-		} catch (IOException e) {
-			sendError("Error while receiving packet: " + e);
-			return null;
+		// Take a larger buffer from the pool if the block size grew
+		if (receiveBuffer == null || receiveBuffer.length < codec.maxPacketSize(blockSize)) {
+			BufferPool.getDefault().release(receiveBuffer);
+			receiveBuffer = BufferPool.getDefault().acquire(codec.maxPacketSize(blockSize));
+			receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 		}
+		DatagramPacket packet = receivePacket;
 
-		// Parse received message
-		// Check packet source and ignore if not from good source
-		// (Unless it is the first packet received)
-		if (destAddress == null)
-			destAddress = packet.getAddress();
-		if (destPort == -1)
-			destPort = packet.getPort();
-		if (destPort != packet.getPort() || !destAddress.equals(packet.getAddress()))
-			return null;
+		// The master client gets the blocks from the group, sent from the
+		// interface multicast goes out of rather than the address the server
+		// was asked at: only the port tells the transfer
+		DatagramSocket socket = groupSocket != null ? groupSocket : this.socket;
 
+		// Receive packet with timeout of <timeout>ms
+		long deadline = System.currentTimeMillis() + timeout;
 		Message message;
-		byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-		try {
-			message = Message.parseFrom(data);
-		} catch (InvalidProtocolBufferException e) {
-			sendError("Error while unpacking packet using protobuf: " + e);
-			return null;
+		while (true) {
+			try {
+				socket.setSoTimeout(timeout == 0 ? 0 : (int) Math.max(1, deadline - System.currentTimeMillis()));
+				packet.setLength(receiveBuffer.length);
+				socket.receive(packet);
+				socket.setSoTimeout(0);
+			} catch (SocketTimeoutException e) {
+				return null;
+			} catch (IOException e) {
+				sendError("Error while receiving packet: " + e);
+				return null;
+			}
+
+			// Check packet source and ignore if not from good source
+			// (Unless it is the first packet received)
+			boolean firstPacket = destPort == -1;
+			if (firstPacket ? destAddress != null && !destAddress.equals(packet.getAddress())
+					: destPort != packet.getPort()
+							|| groupSocket == null && !destAddress.equals(packet.getAddress()))
+				continue;
+
+			// Parse received message
+			try {
+				message = codec.decode(receiveBuffer, packet.getLength());
+			} catch (InvalidProtocolBufferException e) {
+				if (firstPacket)
+					continue;
+				sendError("Error while unpacking packet using protobuf: " + e);
+				return null;
+			}
+
+			// Client side, take the server transfer ID from its first reply
+			// only, not from a late packet of the previous transfer
+			if (firstPacket && requestPort != -1 && !isFirstReply(message))
+				continue;
+			if (firstPacket) {
+				destAddress = packet.getAddress();
+				destPort = packet.getPort();
+			}
+			break;
 		}
 		if (message.getOpCode() == Message.RequestType.ERROR) {
 			throw new ErrorPacketReceivedException(message.getErrMsg());
 		}
 
+		// Block numbers rolled over are the nearest to where the transfer is
+		if (message.getOpCode() == Message.RequestType.DATA || message.getOpCode() == Message.RequestType.ACK) {
+			int block = codec.blockNumber(message.getBlockNum(), blockNumber);
+			if (block != message.getBlockNum())
+				message = message.toBuilder().setBlockNum(block).build();
+		}
+
 		if (currentMessageReceived == null) {
 			currentMessageReceived = message;
 		} else {
@@ -404,17 +1207,50 @@ public class TFTP implements CommInterface {
 		return message;
 	}
 
+	/*
+	 * Encode into the send buffer of the transfer, taken from the pool.
+	 */
+	private DatagramPacket encode(Message message, int size, InetAddress address, int port) {
+		if (sendBuffer == null || sendBuffer.length < size) {
+			BufferPool.getDefault().release(sendBuffer);
+			sendBuffer = BufferPool.getDefault().acquire(Math.max(size, codec.maxPacketSize(blockSize)));
+			sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length);
+		}
+		sendPacket.setData(sendBuffer, 0, codec.encode(message, sendBuffer));
+		sendPacket.setAddress(address);
+		sendPacket.setPort(port);
+		return sendPacket;
+	}
+
+	/*
+	 * Client side. Whether <message> can be the first reply to a request, the
+	 * one telling the transfer ID of the server.
+	 */
+	static boolean isFirstReply(Message message) {
+		switch (message.getOpCode()) {
+		case DATA:
+			return message.getBlockNum() == 1;
+		case ACK:
+			return message.getBlockNum() == 0;
+		default:
+			return message.getOpCode() == Message.RequestType.ERROR;
+		}
+	}
+
 	private void sendError(String errorMessage) {
 		// Print error message
 		System.out.println(errorMessage);
+		failure = errorMessage;
 
 		// Build error message
 		Message message = Message.newBuilder().setOpCode(Message.RequestType.ERROR)
 				.setErrCode(Message.ErrCode.AccessViolation).setErrMsg(errorMessage).build();
-		byte[] messageByte = message.toByteArray();
 
 		// Send message
-		DatagramPacket packet = new DatagramPacket(messageByte, messageByte.length, destAddress, destPort);
+		int port = destPort == -1 ? requestPort : destPort;
+		if (destAddress == null || port == -1)
+			return;
+		DatagramPacket packet = encode(message, codec.encodedSize(message), destAddress, port);
 		try {
 			socket.send(packet);
 			System.out.println("Error packet sent");
@@ -429,29 +1265,6 @@ public class TFTP implements CommInterface {
 		return tokens;
 	}
 
-	private void printProgression(long current, long finish) {
-		switch (PRINT_COMPLETION) {
-		case 0:
-			break;
-		case 1:
-			long currentValue = 100 * current / finish;
-			long lastValue = 100 * (current - MAX_DATA_SIZE) / finish;
-
-			if (currentValue != lastValue)
-				System.out.printf("%d%% done\n", currentValue);
-			break;
-		case 2:
-			float c = (float) (current / 1000.0);
-			float f = (float) (finish / 1000.0);
-			System.out.printf("%.3f//%.3f KB transferred\n", c, f);
-			break;
-		case 3:
-			System.out.println("# of resent packet: " + numOfRetry);
-			// if (numOfRetry == 4)
-			// System.exit(0);
-		}
-	}
-
 	private class ErrorPacketReceivedException extends Exception {
 		private static final long serialVersionUID = 1L;
 
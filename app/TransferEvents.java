@@ -0,0 +1,307 @@
+package app;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+ * Events of transfers for JDK Flight Recorder, so that protocol stalls line
+ * up with GC and I/O in a recording. Until a recording is started, at launch
+ * or later by jcmd, no event is created: the first event class loaded would
+ * start the recorder, hundreds of ms on the first request. Then an event is
+ * only filled and committed when enabled in the recording. Disk events are
+ * timed and, unless the recording says otherwise, kept above DISK_THRESHOLD
+ * only.
+ */
+public class TransferEvents {
+	static final String DISK_THRESHOLD = "1 ms";
+
+	@Name("app.RequestAccepted")
+	@Label("Request Accepted")
+	@Category("TFTP")
+	@Description("Request of a client given a session of its own")
+	@StackTrace(false)
+	public static class RequestAccepted extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Request")
+		String request;
+		@Label("File")
+		String file;
+		@Label("Requested Options")
+		String options;
+	}
+
+	@Name("app.OptionsNegotiated")
+	@Label("Options Negotiated")
+	@Category("TFTP")
+	@Description("Options the transfer goes on with, as acked by the server")
+	@StackTrace(false)
+	public static class OptionsNegotiated extends Event {
+		@Label("Transfer")
+		String transfer;
+		@Label("Requested Options")
+		String requested;
+		@Label("Accepted Options")
+		String accepted;
+	}
+
+	@Name("app.Retransmit")
+	@Label("Retransmit")
+	@Category("TFTP")
+	@Description("Packet sent again, a block or the request or ack it is waiting on")
+	@StackTrace(false)
+	public static class Retransmit extends Event {
+		@Label("Transfer")
+		String transfer;
+		@Label("Block")
+		int block;
+	}
+
+	@Name("app.Timeout")
+	@Label("Timeout")
+	@Category("TFTP")
+	@Description("Nothing received from the peer in time")
+	@StackTrace(false)
+	public static class Timeout extends Event {
+		@Label("Transfer")
+		String transfer;
+		@Label("Block")
+		@Description("Last block acked or received in sequence")
+		int block;
+	}
+
+	@Name("app.DiskRead")
+	@Label("Disk Read")
+	@Category({ "TFTP", "Disk" })
+	@Description("Part of a file being sent loaded into memory")
+	@StackTrace(false)
+	@Threshold(DISK_THRESHOLD)
+	public static class DiskRead extends Event {
+		@Label("File")
+		String file;
+		@Label("Position")
+		long position;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("app.DiskWrite")
+	@Label("Disk Write")
+	@Category({ "TFTP", "Disk" })
+	@Description("Received blocks written to a file, or made to last by a checkpoint when bytes is 0")
+	@StackTrace(false)
+	@Threshold(DISK_THRESHOLD)
+	public static class DiskWrite extends Event {
+		@Label("File")
+		String file;
+		@Label("Position")
+		long position;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("app.WriteWait")
+	@Label("Write Wait")
+	@Category({ "TFTP", "Disk" })
+	@Description("Receiver waiting for blocks queued for writing, its acks held back")
+	@StackTrace(false)
+	@Threshold(DISK_THRESHOLD)
+	public static class WriteWait extends Event {
+		@Label("File")
+		String file;
+		@Label("Blocks")
+		@Description("Blocks waited for")
+		long blocks;
+	}
+
+	@Name("app.TransferCompleted")
+	@Label("Transfer Completed")
+	@Category("TFTP")
+	@Description("Transfer over, successful or not, with its totals")
+	@StackTrace(false)
+	public static class TransferCompleted extends Event {
+		@Label("Transfer")
+		String transfer;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Throughput")
+		@DataAmount
+		@Frequency
+		long bytesPerSecond;
+		@Label("Blocks Sent")
+		long blocksSent;
+		@Label("Blocks Received")
+		long blocksReceived;
+		@Label("Retransmits")
+		long retransmits;
+		@Label("Duplicate Data")
+		long duplicateData;
+		@Label("Duplicate Acks")
+		long duplicateAcks;
+		@Label("Timeouts")
+		long timeouts;
+		@Label("Mean Round Trip (ms)")
+		double rttMean;
+		@Label("99th Percentile Round Trip (ms)")
+		double rttP99;
+	}
+
+	/*
+	 * Whether events are created, once a recording started.
+	 */
+	public static boolean isRecording() {
+		return FlightRecorder.isInitialized();
+	}
+
+	public static void requestAccepted(String peer, Messages.Message request, TransferOptions options) {
+		if (!isRecording())
+			return;
+		RequestAccepted event = new RequestAccepted();
+		if (!event.shouldCommit())
+			return;
+		event.peer = peer;
+		event.request = request.getOpCode().toString();
+		event.file = request.getFileName();
+		event.options = options.toString();
+		event.commit();
+	}
+
+	public static void optionsNegotiated(String transfer, TransferOptions requested, TransferOptions accepted) {
+		if (!isRecording())
+			return;
+		OptionsNegotiated event = new OptionsNegotiated();
+		if (!event.shouldCommit())
+			return;
+		event.transfer = transfer;
+		event.requested = requested != null ? requested.toString() : null;
+		event.accepted = accepted.toString();
+		event.commit();
+	}
+
+	public static void retransmit(String transfer, int block) {
+		if (!isRecording())
+			return;
+		Retransmit event = new Retransmit();
+		if (!event.shouldCommit())
+			return;
+		event.transfer = transfer;
+		event.block = block;
+		event.commit();
+	}
+
+	public static void timeout(String transfer, int block) {
+		if (!isRecording())
+			return;
+		Timeout event = new Timeout();
+		if (!event.shouldCommit())
+			return;
+		event.transfer = transfer;
+		event.block = block;
+		event.commit();
+	}
+
+	/*
+	 * Timed events are begun by these before what they time, null if not
+	 * recording, and ended by the ones below after.
+	 */
+	public static DiskRead beginDiskRead() {
+		if (!isRecording())
+			return null;
+		DiskRead event = new DiskRead();
+		event.begin();
+		return event;
+	}
+
+	public static DiskWrite beginDiskWrite() {
+		if (!isRecording())
+			return null;
+		DiskWrite event = new DiskWrite();
+		event.begin();
+		return event;
+	}
+
+	public static WriteWait beginWriteWait() {
+		if (!isRecording())
+			return null;
+		WriteWait event = new WriteWait();
+		event.begin();
+		return event;
+	}
+
+	public static TransferCompleted beginTransfer() {
+		if (!isRecording())
+			return null;
+		TransferCompleted event = new TransferCompleted();
+		event.begin();
+		return event;
+	}
+
+	public static void diskRead(DiskRead event, String file, long position, long bytes) {
+		if (event == null)
+			return;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+		event.file = file;
+		event.position = position;
+		event.bytes = bytes;
+		event.commit();
+	}
+
+	public static void diskWrite(DiskWrite event, String file, long position, long bytes) {
+		if (event == null)
+			return;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+		event.file = file;
+		event.position = position;
+		event.bytes = bytes;
+		event.commit();
+	}
+
+	public static void writeWait(WriteWait event, String file, long blocks) {
+		if (event == null)
+			return;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+		event.file = file;
+		event.blocks = blocks;
+		event.commit();
+	}
+
+	/*
+	 * <event> begun when the transfer of <metrics> started.
+	 */
+	public static void transferCompleted(TransferCompleted event, TransferMetrics metrics) {
+		if (event == null)
+			return;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+		event.transfer = metrics.getName();
+		event.bytes = metrics.getBytes();
+		event.bytesPerSecond = (long) metrics.getBytesPerSecond();
+		event.blocksSent = metrics.getBlocksSent();
+		event.blocksReceived = metrics.getBlocksReceived();
+		event.retransmits = metrics.getRetransmits();
+		event.duplicateData = metrics.getDuplicateData();
+		event.duplicateAcks = metrics.getDuplicateAcks();
+		event.timeouts = metrics.getTimeouts();
+		event.rttMean = metrics.getRttMean();
+		event.rttP99 = metrics.getRttP99();
+		event.commit();
+	}
+}
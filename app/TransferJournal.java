@@ -0,0 +1,182 @@
+package app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Receiver side. Record of how much of a file being received is safely on
+ * disk, so that a put resumed after the server went down, or a get after the
+ * client did, starts from there instead of the size of the file, which may
+ * count blocks written ahead of a missing one, never flushed or only
+ * preallocated. Kept next to the file until the transfer completes.
+ *
+ * Append only: a header with the name of the file, the block size, the
+ * offset the transfer started at and the size of the whole file if the
+ * sender told it, then one watermark per checkpoint, the end of the blocks
+ * received in sequence. A file of another size by the same name is another
+ * file: its receive does not resume from the journal. The file is flushed before a watermark
+ * is written, and both only every CHECKPOINT_BYTES, not for every block. A
+ * watermark cut short by a crash is ignored.
+ */
+public class TransferJournal {
+	static final String SUFFIX = ".journal";
+	static final long CHECKPOINT_BYTES = 8 << 20; // Received between
+													// checkpoints
+	private static final int MAGIC = 0x54464a32; // "TFJ2"
+
+	private final Path path;
+	private final String filePath; // Journaled
+	private final FileChannel journal;
+	private long checkpointed;
+
+	private TransferJournal(Path path, String filePath, FileChannel journal, long checkpointed) {
+		this.path = path;
+		this.filePath = filePath;
+		this.journal = journal;
+		this.checkpointed = checkpointed;
+	}
+
+	/*
+	 * Journal of a receive into <filePath> starting at <offset>, of a file of
+	 * <total> bytes, -1 if not told. A resumed receive appends to the journal
+	 * of the same file, a new one replaces it.
+	 */
+	public static TransferJournal open(String filePath, int blockSize, long offset, long total, boolean resumed)
+			throws IOException {
+		Path path = Paths.get(filePath + SUFFIX);
+		String name = Paths.get(filePath).getFileName().toString();
+		long[] journaled = read(filePath);
+		if (resumed && journaled != null && same(journaled[0], total)) {
+			FileChannel journal = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			return new TransferJournal(path, filePath, journal, offset);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(MAGIC);
+		header.writeUTF(name);
+		header.writeInt(blockSize);
+		header.writeLong(offset);
+		header.writeLong(total);
+		FileChannel journal = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		write(journal, ByteBuffer.wrap(bytes.toByteArray()));
+		journal.force(false);
+		return new TransferJournal(path, filePath, journal, offset);
+	}
+
+	/*
+	 * Where a receive into <filePath>, <size> bytes long, can resume from: the
+	 * last watermark if it has a journal, <size> otherwise. With a <size> of
+	 * -1, the last watermark or -1.
+	 */
+	public static long recover(String filePath, long size) {
+		return recover(filePath, size, -1);
+	}
+
+	/*
+	 * Same, for a file of <total> bytes, -1 if not told. From the start if
+	 * the journal is of a file of another size, or none with a <size> of -1.
+	 */
+	public static long recover(String filePath, long size, long total) {
+		long[] journaled = read(filePath);
+		if (journaled == null)
+			return size;
+		if (!same(journaled[0], total))
+			return size == -1 ? -1 : 0;
+		return size == -1 ? journaled[1] : Math.min(journaled[1], size);
+	}
+
+	/*
+	 * Why a receive into <filePath> of a file of <total> bytes cannot resume.
+	 * Null if it is of the file journaled, or none is.
+	 */
+	public static String refuse(String filePath, long total) {
+		long[] journaled = read(filePath);
+		if (journaled == null || same(journaled[0], total))
+			return null;
+		return "file changed since it was partly received, get it again";
+	}
+
+	private static boolean same(long journaled, long total) {
+		return journaled == -1 || total == -1 || journaled == total;
+	}
+
+	/*
+	 * Size of the file and last watermark of the journal of <filePath>. Null
+	 * if it has none.
+	 */
+	private static long[] read(String filePath) {
+		try (InputStream in = Files.newInputStream(Paths.get(filePath + SUFFIX))) {
+			DataInputStream journal = new DataInputStream(in);
+			if (journal.readInt() != MAGIC || !journal.readUTF().equals(Paths.get(filePath).getFileName().toString()))
+				return null;
+			journal.readInt(); // Block size
+			long watermark = journal.readLong(); // Offset
+			long total = journal.readLong();
+			try {
+				while (true)
+					watermark = journal.readLong();
+			} catch (EOFException e) {
+				// Last watermark, complete or not
+			}
+			return new long[] { total, watermark };
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Whether a checkpoint is due once blocks are received in sequence up to
+	 * <end>.
+	 */
+	public boolean due(long end) {
+		return end - checkpointed >= CHECKPOINT_BYTES;
+	}
+
+	/*
+	 * Blocks of <file> up to <end> are written, make them last.
+	 */
+	public void checkpoint(FileChannel file, long end) throws IOException {
+		TransferEvents.DiskWrite event = TransferEvents.beginDiskWrite();
+		file.force(false);
+		write(journal, ByteBuffer.allocate(Long.BYTES).putLong(0, end));
+		journal.force(false);
+		checkpointed = end;
+		TransferEvents.diskWrite(event, filePath, end, 0);
+	}
+
+	/*
+	 * All of <file> received, the journal is not needed anymore.
+	 */
+	public void complete(FileChannel file) throws IOException {
+		TransferEvents.DiskWrite event = TransferEvents.beginDiskWrite();
+		file.force(false);
+		TransferEvents.diskWrite(event, filePath, file.size(), 0);
+		journal.close();
+		Files.deleteIfExists(path);
+	}
+
+	public void close() {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			System.out.println("Error while closing journal: " + e);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
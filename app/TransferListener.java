@@ -0,0 +1,41 @@
+package app;
+
+/*
+ * Told how the transfers of an engine go. Called on the thread moving the
+ * data, or the event loop: must return quickly and never block. Transfers
+ * are told apart by <id>, a started transfer ends with completed or error,
+ * once. Nothing is done by default.
+ */
+public interface TransferListener {
+
+	/*
+	 * Transfer <id> called <name> starts.
+	 */
+	public default void started(long id, String name) {
+	}
+
+	/*
+	 * <bytes> of <total> moved, in sequence. <total> is -1 when the receiver
+	 * was not told the size.
+	 */
+	public default void progress(long id, long bytes, long total) {
+	}
+
+	/*
+	 * Packet sent again, <block> or the request or ack before it.
+	 */
+	public default void retry(long id, int block) {
+	}
+
+	/*
+	 * All <bytes> moved, with <retries> packets sent again.
+	 */
+	public default void completed(long id, long bytes, int retries) {
+	}
+
+	/*
+	 * Transfer given up on, as told by <message>.
+	 */
+	public default void error(long id, String message) {
+	}
+}
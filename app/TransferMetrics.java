@@ -0,0 +1,270 @@
+package app;
+
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/*
+ * Counters of a transfer, added to the ones of all transfers of the process
+ * as they go. Recorded by the transfer, read by JMX at any time: nothing is
+ * locked. Once the process registers them, with register, each transfer is
+ * an MBean of its own while it runs. What is recorded here also makes the
+ * flight recorder events of the transfer, see TransferEvents.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+	private static final TransferMetrics all = new TransferMetrics("all", null);
+	private static final AtomicLong ids = new AtomicLong();
+	private static volatile boolean registered = false;
+
+	private final long id; // 0 for all
+	private final String name;
+	private final TransferMetrics total; // All transfers, null for all
+	private final String properties; // Of the MBean, null if not registered
+	private final long start = System.nanoTime();
+	private volatile long end = 0; // 0 while running
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder blocksSent = new LongAdder(), blocksReceived = new LongAdder();
+	private final LongAdder retransmits = new LongAdder(), duplicateData = new LongAdder(),
+			duplicateAcks = new LongAdder(), timeouts = new LongAdder();
+	private final Histogram rtt = new Histogram(); // µs
+	private final LongAdder active = new LongAdder(), finished = new LongAdder(); // All
+	private final Histogram throughput = new Histogram(); // All, bytes/s of
+															// finished
+															// transfers
+	private final TransferEvents.TransferCompleted completed; // Null for all
+																// or not recording
+
+	private TransferMetrics(String name, TransferMetrics total) {
+		this.id = total != null ? ids.incrementAndGet() : 0;
+		this.name = name;
+		this.total = total;
+		this.properties = total != null && registered ? "type=Transfer,name=" + ObjectName.quote(id + " " + name)
+				: null;
+		this.completed = total != null ? TransferEvents.beginTransfer() : null;
+	}
+
+	/*
+	 * Make all transfers of the process an MBean, each transfer too from now
+	 * on.
+	 */
+	public static synchronized void register() {
+		if (registered)
+			return;
+		MBeans.register("type=Transfers,name=all", all);
+		registered = true;
+	}
+
+	/*
+	 * A transfer called <name> starts.
+	 */
+	public static TransferMetrics start(String name) {
+		TransferMetrics metrics = new TransferMetrics(name, all);
+		all.active.increment();
+		if (metrics.properties != null)
+			MBeans.register(metrics.properties, metrics);
+		return metrics;
+	}
+
+	public void finish() {
+		if (end != 0)
+			return;
+		end = System.nanoTime();
+		all.active.decrement();
+		all.finished.increment();
+		all.throughput.record((long) getBytesPerSecond());
+		if (properties != null)
+			MBeans.unregister(properties);
+		TransferEvents.transferCompleted(completed, this);
+	}
+
+	/*
+	 * Options <accepted> by the server among the <requested> ones, null if
+	 * not known.
+	 */
+	public void negotiated(TransferOptions requested, TransferOptions accepted) {
+		TransferEvents.optionsNegotiated(name, requested, accepted);
+	}
+
+	/*
+	 * Block of <size> bytes sent for the first time.
+	 */
+	public void sent(int size) {
+		blocksSent.increment();
+		bytes.add(size);
+		if (total != null)
+			total.sent(size);
+	}
+
+	/*
+	 * New block of <size> bytes received.
+	 */
+	public void received(int size) {
+		blocksReceived.increment();
+		bytes.add(size);
+		if (total != null)
+			total.received(size);
+	}
+
+	/*
+	 * Packet sent again, <block> or the request or ack before it.
+	 */
+	public void retransmit(int block) {
+		retransmits.increment();
+		if (total != null) {
+			total.retransmit(block);
+			TransferEvents.retransmit(name, block);
+		}
+	}
+
+	public void duplicateData() {
+		duplicateData.increment();
+		if (total != null)
+			total.duplicateData();
+	}
+
+	public void duplicateAck() {
+		duplicateAcks.increment();
+		if (total != null)
+			total.duplicateAck();
+	}
+
+	/*
+	 * Nothing received in time, <block> acked or received last.
+	 */
+	public void timeout(int block) {
+		timeouts.increment();
+		if (total != null) {
+			total.timeout(block);
+			TransferEvents.timeout(name, block);
+		}
+	}
+
+	/*
+	 * Round trip of <ms>, as sampled for the retransmission timeout.
+	 */
+	public void rtt(double ms) {
+		rtt.record(Math.round(ms * 1000));
+		if (total != null)
+			total.rtt(ms);
+	}
+
+	/*
+	 * Tells the transfer from the others of the process.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/*
+	 * Since the transfer started, or the process for all transfers.
+	 */
+	@Override
+	public double getBytesPerSecond() {
+		long elapsed = (end != 0 ? end : System.nanoTime()) - start;
+		return elapsed <= 0 ? 0 : bytes.sum() * 1e9 / elapsed;
+	}
+
+	@Override
+	public long getBlocksSent() {
+		return blocksSent.sum();
+	}
+
+	@Override
+	public long getBlocksReceived() {
+		return blocksReceived.sum();
+	}
+
+	@Override
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	@Override
+	public long getDuplicateData() {
+		return duplicateData.sum();
+	}
+
+	@Override
+	public long getDuplicateAcks() {
+		return duplicateAcks.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getRttCount() {
+		return rtt.getCount();
+	}
+
+	@Override
+	public double getRttMean() {
+		return rtt.getMean() / 1000;
+	}
+
+	@Override
+	public double getRttP50() {
+		return rtt.getPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getRttP99() {
+		return rtt.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getRttMax() {
+		return rtt.getMax() / 1000.0;
+	}
+
+	@Override
+	public SortedMap<Long, Long> getRttHistogram() {
+		return rtt.getBuckets();
+	}
+
+	@Override
+	public long getActiveTransfers() {
+		return active.sum();
+	}
+
+	@Override
+	public long getFinishedTransfers() {
+		return finished.sum();
+	}
+
+	@Override
+	public double getThroughputP50() {
+		return throughput.getPercentile(50);
+	}
+
+	@Override
+	public double getThroughputP10() {
+		return throughput.getPercentile(10);
+	}
+
+	@Override
+	public SortedMap<Long, Long> getThroughputHistogram() {
+		return throughput.getBuckets();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d bytes, %.3f MB/s, %d retransmits, %d timeouts, RTT %.3f/%.3f ms (p50/p99)",
+				name, getBytes(), getBytesPerSecond() / 1e6, getRetransmits(), getTimeouts(), getRttP50(),
+				getRttP99());
+	}
+}
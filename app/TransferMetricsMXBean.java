@@ -0,0 +1,50 @@
+package app;
+
+import java.util.SortedMap;
+
+/*
+ * What JMX shows of a transfer, or of all transfers of the process. Times
+ * are in ms, throughputs in bytes/s.
+ */
+public interface TransferMetricsMXBean {
+	public String getName();
+
+	public long getBytes();
+
+	public double getBytesPerSecond();
+
+	public long getBlocksSent();
+
+	public long getBlocksReceived();
+
+	public long getRetransmits();
+
+	public long getDuplicateData();
+
+	public long getDuplicateAcks();
+
+	public long getTimeouts();
+
+	public long getRttCount();
+
+	public double getRttMean();
+
+	public double getRttP50();
+
+	public double getRttP99();
+
+	public double getRttMax();
+
+	public SortedMap<Long, Long> getRttHistogram(); // Count by µs
+
+	public long getActiveTransfers();
+
+	public long getFinishedTransfers();
+
+	public double getThroughputP50(); // Of finished transfers
+
+	public double getThroughputP10();
+
+	public SortedMap<Long, Long> getThroughputHistogram(); // Count by
+															// bytes/s
+}
@@ -0,0 +1,99 @@
+package app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * Transfer options (RFC 2347). Requested options travel in the data field of
+ * a RRQ/WRQ and the accepted ones come back in an option ack, which is an ack
+ * #0 carrying data. Encoded as null terminated name/value strings so a peer
+ * that does not know about options simply ignores them.
+ */
+public class TransferOptions {
+	public static final String WINDOW_SIZE = "windowsize";
+	public static final String BLOCK_SIZE = "blksize";
+	public static final String ACK_EVERY = "ackevery"; // Receiver acks every
+														// block, not only
+														// window ends
+	public static final String SACK = "sack"; // Acks carry the blocks received
+												// past a missing one
+	public static final String RANGE = "range"; // Part of the file, see
+												// ByteRange
+	public static final String MULTICAST = "multicast"; // Blocks sent to a
+														// group, see
+														// MulticastGroups
+	public static final String ROLLOVER = "rollover"; // Block numbers roll
+														// over to 0 past the
+														// highest the format
+														// carries
+	public static final String TSIZE = "tsize"; // Size of the file (RFC
+												// 2349), see TransferSize
+
+	private final Map<String, String> options = new LinkedHashMap<>();
+
+	public static TransferOptions parse(ByteString data) {
+		TransferOptions result = new TransferOptions();
+		String[] tokens = data.toStringUtf8().split("\0");
+		for (int i = 0; i + 1 < tokens.length; i += 2) {
+			result.options.put(tokens[i].toLowerCase(), tokens[i + 1]);
+		}
+		return result;
+	}
+
+	public static boolean isOptionAck(Messages.Message message) {
+		return message.getOpCode() == Messages.Message.RequestType.ACK && message.getBlockNum() == 0
+				&& message.hasData();
+	}
+
+	public TransferOptions put(String name, String value) {
+		options.put(name, value);
+		return this;
+	}
+
+	public TransferOptions put(String name, long value) {
+		return put(name, Long.toString(value));
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String get(String name) {
+		return options.get(name);
+	}
+
+	public int getInt(String name, int defaultValue) {
+		try {
+			return has(name) ? Integer.parseInt(get(name)) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String name, long defaultValue) {
+		try {
+			return has(name) ? Long.parseLong(get(name)) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public boolean isEmpty() {
+		return options.isEmpty();
+	}
+
+	public ByteString toByteString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			builder.append(option.getKey()).append('\0').append(option.getValue()).append('\0');
+		}
+		return ByteString.copyFromUtf8(builder.toString());
+	}
+
+	@Override
+	public String toString() {
+		return options.toString();
+	}
+}
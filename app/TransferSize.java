@@ -0,0 +1,51 @@
+package app;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Receiver side. Transfer size option (RFC 2349): a RRQ asks for it with a
+ * 0, a WRQ gives the size of the file sent and the option ack gives it back,
+ * or the size of the file the server sends. Known before the first block, a
+ * file that would not fit is refused outright and the file receiving it is
+ * sized once, instead of growing with every block.
+ */
+public class TransferSize {
+	/*
+	 * Why a file of <size> bytes cannot be received into <file>, at <path>.
+	 * Null if it fits. What <file> holds already is reused.
+	 */
+	public static String refuse(Path path, FileChannel file, long size) throws IOException {
+		if (size < 0)
+			return "invalid transfer size " + size;
+		long free = Files.getFileStore(path).getUsableSpace();
+		if (size - file.size() > free)
+			return "file of " + size + " bytes does not fit, " + free + " bytes free";
+		return null;
+	}
+
+	/*
+	 * Extend <file> to <size> bytes. Java has no fallocate: writing the last
+	 * byte sets the size in one metadata update and the blocks are laid out
+	 * as they come, in one go on file systems delaying allocation.
+	 */
+	public static void preallocate(FileChannel file, long size) throws IOException {
+		if (size > file.size())
+			file.write(ByteBuffer.allocate(1), size - 1);
+	}
+
+	/*
+	 * Set the file at <path> to <size> bytes, cutting what an older file left
+	 * past it. Nothing is written, so that stripes of the same file sizing it
+	 * each in turn never overwrite blocks written by another one.
+	 */
+	public static void resize(Path path, long size) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			file.setLength(size);
+		}
+	}
+}
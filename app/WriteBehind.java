@@ -0,0 +1,243 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*
+ * Writes received blocks to the file from a thread of its own, so that the
+ * receiver acks a block as soon as it is queued and a slow disk does not add
+ * to the round trip time seen by the sender. Blocks are copied into a ring of
+ * BLOCKS buffers, filled by the receiver and emptied by the writer only. When
+ * the ring is full the receiver waits for the writer. A write that failed is
+ * thrown by the next call of the receiver. A receiver that must not wait, an
+ * event loop, has the writer run what depends on the blocks once they are
+ * written instead of flushing, and holds the sender back until there is room
+ * instead of filling the ring.
+ */
+public class WriteBehind implements AutoCloseable {
+	static final int BLOCKS = 64; // Queued before the receiver waits
+
+	private final FileChannel file;
+	private final String filePath; // For recordings
+	private final byte[][] blocks = new byte[BLOCKS][]; // From the pool
+	private final long[] positions = new long[BLOCKS];
+	private final int[] lengths = new int[BLOCKS];
+	private volatile long queued = 0; // Blocks queued so far, receiver only
+	private volatile long written = 0; // Blocks written so far, writer only
+	private volatile IOException failure;
+	private volatile boolean closed = false;
+	private volatile boolean idle = false; // Writer waiting for a block
+	private volatile Thread waiting; // Receiver waiting for the writer
+	private Thread writer; // Started with the first block
+	private final Queue<Barrier> barriers = new ConcurrentLinkedQueue<>(); // Run by the writer
+
+	public interface Task {
+		public void run() throws IOException;
+	}
+
+	private static class Barrier {
+		private final long count; // Blocks written before the task
+		private final Task task;
+		private final Consumer<IOException> done;
+
+		private Barrier(long count, Task task, Consumer<IOException> done) {
+			this.count = count;
+			this.task = task;
+			this.done = done;
+		}
+	}
+
+	public WriteBehind(FileChannel file, String filePath) {
+		this.file = file;
+		this.filePath = filePath;
+	}
+
+	/*
+	 * Queue <data> to be written at <position>. Waits if the ring is full.
+	 */
+	public void write(long position, ByteBuffer data) throws IOException {
+		start();
+		await(queued - BLOCKS + 1);
+
+		int slot = (int) (queued % BLOCKS), length = data.remaining();
+		if (blocks[slot] == null || blocks[slot].length < length) {
+			BufferPool.getDefault().release(blocks[slot]);
+			blocks[slot] = BufferPool.getDefault().acquire(length);
+		}
+		data.get(blocks[slot], 0, length);
+		positions[slot] = position;
+		lengths[slot] = length;
+		queued++;
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	/*
+	 * Wait until all queued blocks are written.
+	 */
+	public void flush() throws IOException {
+		await(queued);
+	}
+
+	/*
+	 * Does not wait. Once the blocks queued so far are written, run <task>, if
+	 * any, from the writer, then <done> with the failure of the task or of a
+	 * write, null if none.
+	 */
+	public void then(Task task, Consumer<IOException> done) {
+		queue(new Barrier(queued, task, done));
+	}
+
+	/*
+	 * Blocks that can be queued without waiting.
+	 */
+	public int room() {
+		return (int) (BLOCKS - (queued - written));
+	}
+
+	/*
+	 * Does not wait. Once <blocks> can be queued without waiting, call <done>
+	 * from the writer, with the failure of a write, null if none.
+	 */
+	public void whenRoom(int blocks, Consumer<IOException> done) {
+		queue(new Barrier(queued - BLOCKS + blocks, null, done));
+	}
+
+	/*
+	 * Write what is queued and stop the writer. Buffers go back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writer == null)
+			return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			release();
+			writer = null;
+		}
+	}
+
+	/*
+	 * Does not wait. Once what is queued is written, run <task> and stop the
+	 * writer, then call <done> from the writer with the failure of a write or
+	 * of <task>, null if none. Nothing is queued after.
+	 */
+	public void close(Task task, Consumer<IOException> done) {
+		then(task, failed -> {
+			closed = true;
+			release();
+			done.accept(failed);
+		});
+	}
+
+	private void release() {
+		for (int i = 0; i < BLOCKS; i++) {
+			BufferPool.getDefault().release(blocks[i]);
+			blocks[i] = null;
+		}
+	}
+
+	private void queue(Barrier barrier) {
+		start();
+		barriers.add(barrier);
+		if (failure != null)
+			fail();
+		else if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	private void start() {
+		if (writer == null)
+			writer = Thread.ofVirtual().name("tftp-writer").start(this::drain);
+	}
+
+	/*
+	 * Receiver side, wait until <count> blocks are written.
+	 */
+	private void await(long count) throws IOException {
+		long behind = count - written; // Blocks waited for, if any
+		TransferEvents.WriteWait event = behind > 0 ? TransferEvents.beginWriteWait() : null;
+		while (written < count && failure == null) {
+			waiting = Thread.currentThread();
+			if (written < count && failure == null)
+				LockSupport.park(this);
+		}
+		waiting = null;
+		TransferEvents.writeWait(event, filePath, behind);
+		if (failure != null)
+			throw failure;
+	}
+
+	/*
+	 * Writer thread. Writes blocks in the order they were queued, and runs
+	 * barriers as soon as the blocks before them are, until closed or a
+	 * write fails.
+	 */
+	private void drain() {
+		while (true) {
+			Barrier barrier = barriers.peek();
+			if (barrier != null && barrier.count <= written) {
+				barriers.poll();
+				IOException failed = null;
+				try {
+					if (barrier.task != null)
+						barrier.task.run();
+				} catch (IOException e) {
+					failed = e;
+				}
+				barrier.done.accept(failed);
+				continue;
+			}
+			if (written == queued) {
+				if (closed)
+					return;
+				idle = true;
+				if (written == queued && !closed && barriers.isEmpty())
+					LockSupport.park(this);
+				idle = false;
+				continue;
+			}
+			int slot = (int) (written % BLOCKS);
+			try {
+				TransferEvents.DiskWrite event = TransferEvents.beginDiskWrite();
+				ByteBuffer data = ByteBuffer.wrap(blocks[slot], 0, lengths[slot]);
+				long position = positions[slot];
+				while (data.hasRemaining())
+					position += file.write(data, position);
+				TransferEvents.diskWrite(event, filePath, positions[slot], lengths[slot]);
+			} catch (IOException e) {
+				failure = e;
+			}
+			if (failure == null)
+				written++;
+			Thread receiver = waiting;
+			if (receiver != null)
+				LockSupport.unpark(receiver);
+			if (failure != null) {
+				fail();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * A write failed, barriers waiting for it never run.
+	 */
+	private void fail() {
+		for (Barrier barrier; (barrier = barriers.poll()) != null;)
+			barrier.done.accept(failure);
+	}
+}
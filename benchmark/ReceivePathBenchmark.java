@@ -0,0 +1,116 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+
+import app.FTServer;
+import app.PacketCodec;
+import app.ProtobufCodec;
+import app.Rfc1350Codec;
+import app.TFTP;
+import app.Messages.Message;
+
+/*
+ * Heap allocated per block received. First decodes the same DATA packet over
+ * and over, the way the receive path used to (copy the packet, parse, copy
+ * the data out) and the way each codec does now (parse in place, write from
+ * the packet buffer). Then gets a file from a local server and measures what
+ * the receiving thread allocated per block.
+ *
+ * Run from the server directory (needs ./server/send/):
+ *   java benchmark.ReceivePathBenchmark [fileSizeKB] [rounds]
+ */
+public class ReceivePathBenchmark {
+	private static final String FILE_NAME = "receive-benchmark.bin";
+	private static final int PORT = 6073;
+	private static final int BLOCK_SIZE = 8192;
+	private static final int DECODES = 200000;
+
+	private static com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		int sizeKB = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		// Decode only
+		byte[] data = new byte[BLOCK_SIZE];
+		new Random(1).nextBytes(data);
+		Message packet = Message.newBuilder().setOpCode(Message.RequestType.DATA).setBlockNum(42)
+				.setData(ByteString.copyFrom(data)).build();
+		PacketCodec protobuf = new ProtobufCodec(), rfc1350 = new Rfc1350Codec();
+		byte[] protobufBuf = new byte[65536], rfc1350Buf = new byte[65536];
+		int protobufLength = protobuf.encode(packet, protobufBuf);
+		int rfc1350Length = rfc1350.encode(packet, rfc1350Buf);
+		System.out.printf("%-10s %10s %14s%n", "decode", "size", "bytes/block");
+		for (int round = 1; round <= rounds; round++) {
+			long copy = decodeCopy(protobufBuf, protobufLength);
+			long inPlace = decodeInPlace(protobuf, protobufBuf, protobufLength);
+			long fixed = decodeInPlace(rfc1350, rfc1350Buf, rfc1350Length);
+			if (round == rounds) {
+				System.out.printf("%-10s %10d %14d%n", "copy", protobufLength, copy);
+				System.out.printf("%-10s %10d %14d%n", "protobuf", protobufLength, inPlace);
+				System.out.printf("%-10s %10d %14d%n", "rfc1350", rfc1350Length, fixed);
+			}
+		}
+
+		// Whole transfer
+		byte[] file = new byte[sizeKB * 1024];
+		new Random(2).nextBytes(file);
+		Files.write(Paths.get("./server/send/" + FILE_NAME), file);
+		Path received = Files.createTempFile("receive-benchmark", ".bin");
+		Thread server = new Thread(new FTServer(PORT, false, 4)::run);
+		server.setDaemon(true);
+		server.start();
+		Thread.sleep(500);
+
+		System.out.printf("%n%-10s %10s %14s %10s%n", "get", "blocks", "bytes/block", "ms");
+		TFTP client = new TFTP();
+		client.initializeClient("localhost", PORT);
+		int blocks = file.length / BLOCK_SIZE + 1;
+		for (int round = 1; round <= rounds; round++) {
+			long before = allocated();
+			long start = System.nanoTime();
+			client.sendCommand("get," + FILE_NAME);
+			client.receiveFile(received.toString());
+			long time = (System.nanoTime() - start) / 1000000;
+			long perBlock = (allocated() - before) / blocks;
+			if (!Arrays.equals(file, Files.readAllBytes(received)))
+				System.out.println("Round " + round + ": received file differs");
+			System.out.printf("%-10s %10d %14d %10d%n", "round " + round, blocks, perBlock, time);
+		}
+
+		Files.delete(Paths.get("./server/send/" + FILE_NAME));
+		Files.delete(received);
+		System.exit(0);
+	}
+
+	private static long decodeCopy(byte[] buf, int length) throws Exception {
+		long before = allocated();
+		for (int i = 0; i < DECODES; i++) {
+			Message message = Message.parseFrom(Arrays.copyOf(buf, length));
+			sink += message.getData().toByteArray().length;
+		}
+		return (allocated() - before) / DECODES;
+	}
+
+	private static long decodeInPlace(PacketCodec codec, byte[] buf, int length) throws Exception {
+		long before = allocated();
+		for (int i = 0; i < DECODES; i++) {
+			Message message = codec.decode(buf, length);
+			sink += message.getData().asReadOnlyByteBuffer().remaining();
+		}
+		return (allocated() - before) / DECODES;
+	}
+
+	private static long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+	}
+}
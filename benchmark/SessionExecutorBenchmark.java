@@ -0,0 +1,134 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import app.FTServer;
+import app.Messages.Message;
+
+/*
+ * Compares the server session executors with a burst of mostly idle
+ * transfers. Each client sends a RRQ and never acks, so every session served
+ * sits in its retransmit waits until it gives up. Reports how many sessions
+ * were served or turned away, how long the burst took to drain, and the
+ * peak platform thread count and heap used above the idle server.
+ *
+ * Run from the server directory (needs ./server/send/), with ulimit -n above
+ * twice the number of sessions:
+ *   java benchmark.SessionExecutorBenchmark [sessions] [poolSize]
+ */
+public class SessionExecutorBenchmark {
+	private static final String FILE_NAME = "session-benchmark.bin";
+	private static final int REQUEST_TIMEOUT = 1000; // Client resends its RRQ
+	private static final int DRAIN_TIMEOUT = 60000;
+
+	private static ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		Files.write(Paths.get("./server/send/" + FILE_NAME), new byte[4096]);
+
+		System.out.printf("%-8s %8s %8s %8s %10s %10s %12s%n", "mode", "served", "busy", "lost", "drain ms",
+				"threads", "heap KB");
+		run("pool", new FTServer(6071, false, poolSize), 6071, sessions);
+		run("virtual", new FTServer(6072, true, sessions), 6072, sessions);
+
+		Files.delete(Paths.get("./server/send/" + FILE_NAME));
+		System.exit(0);
+	}
+
+	private static void run(String mode, FTServer server, int port, int sessions) throws Exception {
+		Thread listener = new Thread(server::run);
+		listener.setDaemon(true);
+		listener.start();
+		Thread.sleep(500);
+
+		System.gc();
+		long baseHeap = usedHeap();
+		int baseThreads = threads.getThreadCount();
+
+		// Fire the burst of requests, each from its own port
+		byte[] request = Message.newBuilder().setOpCode(Message.RequestType.RRQ).setFileName(FILE_NAME).build()
+				.toByteArray();
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		Selector selector = Selector.open();
+		DatagramChannel[] clients = new DatagramChannel[sessions];
+		long[] requestTime = new long[sessions];
+		long start = System.nanoTime();
+		for (int i = 0; i < sessions; i++) {
+			clients[i] = DatagramChannel.open().bind(null);
+			clients[i].configureBlocking(false);
+			clients[i].register(selector, SelectionKey.OP_READ, i);
+			clients[i].send(ByteBuffer.wrap(request), serverAddress);
+			requestTime[i] = System.currentTimeMillis();
+			if (i % 10 == 9)
+				Thread.sleep(1);
+		}
+
+		// Every client ends with an error: "Server busy" if turned away,
+		// "Ack never received" once its session gave up
+		int served = 0, busy = 0, done = 0;
+		boolean[] replied = new boolean[sessions];
+		boolean[] finished = new boolean[sessions];
+		long peakHeap = 0;
+		int peakThreads = 0;
+		ByteBuffer buf = ByteBuffer.allocate(65536);
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while (done < sessions && System.currentTimeMillis() < deadline) {
+			selector.select(10);
+			for (SelectionKey key : selector.selectedKeys()) {
+				int i = (Integer) key.attachment();
+				buf.clear();
+				if (((DatagramChannel) key.channel()).receive(buf) == null || finished[i])
+					continue;
+				buf.flip();
+				Message message = Message.parseFrom(Arrays.copyOf(buf.array(), buf.limit()));
+				if (message.getOpCode() != Message.RequestType.ERROR) {
+					if (!replied[i])
+						served++;
+				} else if (!replied[i]) {
+					busy++;
+				}
+				replied[i] = true;
+				if (message.getOpCode() == Message.RequestType.ERROR) {
+					finished[i] = true;
+					done++;
+				}
+			}
+			selector.selectedKeys().clear();
+
+			// Like any client, resend the request if it got no reply
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < sessions; i++) {
+				if (!replied[i] && now - requestTime[i] > REQUEST_TIMEOUT) {
+					clients[i].send(ByteBuffer.wrap(request), serverAddress);
+					requestTime[i] = now;
+				}
+			}
+			peakHeap = Math.max(peakHeap, usedHeap() - baseHeap);
+			peakThreads = Math.max(peakThreads, threads.getThreadCount() - baseThreads);
+		}
+		long drain = (System.nanoTime() - start) / 1000000;
+
+		for (DatagramChannel client : clients)
+			client.close();
+		selector.close();
+		System.out.printf("%-8s %8d %8d %8d %10d %10d %12d%n", mode, served, busy, sessions - served - busy, drain,
+				peakThreads, peakHeap / 1024);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}